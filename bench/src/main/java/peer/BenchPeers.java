@@ -0,0 +1,169 @@
+package peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Peer process set up for the benchmarks, once per forked JVM, the way
+ * PeerProcess does it: SystemInfo, the logs (./log, DebugLog off) and the
+ * FileManager of a temp file, a seeder's with random data or a leecher's.
+ *
+ * Host 1001 is the seeder on a free loopback port, the benchmark plays its
+ * neighbor 1002.
+ */
+final class BenchPeers {
+	static final String HOST_ID = "1001";
+	static final String NEIGHBOR_ID = "1002";
+
+	private static Peer host = null;
+	private static Peer neighbor = null;
+	private static File dir = null;
+
+	private BenchPeers() {}
+
+	/**
+	 * @param optionalParams key, value pairs of Common.cfg on top of the bench defaults
+	 */
+	static synchronized void init(int pieceSize, int blockNum, String... optionalParams) throws Exception {
+		if(host != null) {
+			if(SystemInfo.getSingletonObj().getPieceSize() != pieceSize) {
+				throw new IllegalStateException("peer is set up with another PieceSize, run with forks");
+			}
+			return;
+		}
+		Peer h = new Peer(HOST_ID, "localhost", String.valueOf(freePort()), "1");
+		Peer n = new Peer(NEIGHBOR_ID, "localhost", String.valueOf(freePort()), "0");
+		HashMap<String, Peer> neighborMap = new HashMap<String, Peer>();
+		neighborMap.put(n.getId(), n);
+		new SystemInfo(h, neighborMap);
+
+		dir = Files.createTempDirectory("p2p-bench").toFile();
+		dir.deleteOnExit();
+		long fileSize = (long) pieceSize * blockNum;
+		ArrayList<String> required = new ArrayList<String>(Arrays.asList(
+			"1", "5", "10", "thefile", String.valueOf(fileSize), String.valueOf(pieceSize)
+		));
+		HashMap<String, String> optional = new HashMap<String, String>();
+		optional.put("DebugLog", "false");
+		optional.put("VerifyPieces", "false");
+		optional.put("ResumeDownload", "false");
+		for(int i = 0; i + 1 < optionalParams.length; i += 2) {
+			optional.put(optionalParams[i], optionalParams[i + 1]);
+		}
+		new SystemInfo(required, optional);
+		host = h;
+		neighbor = n;
+	}
+
+	/**
+	 * FileManager of the seeder, the file is written once with random data
+	 */
+	static synchronized FileManager initSeederFile() throws IOException {
+		SystemInfo sysInfo = SystemInfo.getSingletonObj();
+		File file = new File(dir, sysInfo.getFileName());
+		if(!file.exists()) {
+			Random rnd = new Random(5106);
+			byte[] chunk = new byte[1 << 20];
+			try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				long left = sysInfo.getFileSize();
+				while(left > 0) {
+					rnd.nextBytes(chunk);
+					int len = (int) Math.min(left, chunk.length);
+					raf.write(chunk, 0, len);
+					left -= len;
+				}
+			}
+			file.deleteOnExit();
+		}
+		return FileManager.getInstance(file.getPath(), "r", sysInfo.getFileSize(), sysInfo.getPieceSize());
+	}
+
+	/**
+	 * FileManager of a leecher, a new empty file, every block interested
+	 */
+	static synchronized FileManager initLeecherFile() {
+		SystemInfo sysInfo = SystemInfo.getSingletonObj();
+		File file = new File(dir, sysInfo.getFileName());
+		file.deleteOnExit();
+		return FileManager.getInstance(file.getPath(), "rw", sysInfo.getFileSize(), sysInfo.getPieceSize());
+	}
+
+	static Peer getHost() {
+		return host;
+	}
+
+	static Peer getNeighbor() {
+		return neighbor;
+	}
+
+	/**
+	 * @param name ActualMsg.TYPE_NAMES entry
+	 */
+	static byte typeOf(String name) {
+		for(byte type = 0; type < ActualMsg.TYPE_NAMES.length; type++) {
+			if(ActualMsg.TYPE_NAMES[type].equals(name)) return type;
+		}
+		throw new IllegalArgumentException("unknown msg type " + name);
+	}
+
+	private static int freePort() throws IOException {
+		try(ServerSocket s = new ServerSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+
+	/**
+	 * Endless stream repeating the same bytes, recv() reads one encoded msg over and over
+	 */
+	static final class LoopInputStream extends InputStream {
+		private final byte[] bytes;
+		private int pos = 0;
+
+		LoopInputStream(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		public int read() {
+			int b = this.bytes[this.pos] & 0xff;
+			this.pos = (this.pos + 1) % this.bytes.length;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			int n = Math.min(len, this.bytes.length - this.pos);
+			System.arraycopy(this.bytes, this.pos, b, off, n);
+			this.pos = (this.pos + n) % this.bytes.length;
+			return n;
+		}
+	}
+
+	/**
+	 * Stream copying what is written into a scratch buffer and dropping it,
+	 * the copy a socket write makes without the socket
+	 */
+	static final class CopyOutputStream extends OutputStream {
+		private final byte[] scratch = new byte[64 << 10];
+
+		public void write(int b) {
+			this.scratch[0] = (byte) b;
+		}
+
+		public void write(byte[] b, int off, int len) {
+			while(len > 0) {
+				int n = Math.min(len, this.scratch.length);
+				System.arraycopy(b, off, this.scratch, 0, n);
+				off += n;
+				len -= n;
+			}
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package peer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Bytes moved by the benchmark thread, reported per second next to the score
+ * as "bytes"
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ByteCounter {
+	public long bytes;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		this.bytes = 0;
+	}
+}
@@ -0,0 +1,174 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FileManager calls made on every msg, on the FileManager of a leecher (new
+ * temp file) with 100 - 1M pieces. Run with -t 1 / 8 / 64 for the contention
+ * of the state lock and the storage.
+ *
+ * - storage: read / write of a random block, by StorageBackend. PieceSize is
+ *   16 KB, 1 KB at 1M pieces (1 GB temp file at most). write is the disk writer's
+ *   writeRun(), FileManager.write() writes a block once, then only counts
+ *   duplicates
+ * - swarm: isInterested, pickInterestedFileBlock(s), insertBitfield,
+ *   getOwnBitfieldSize with 1 - 64 neighbors, each having every piece at 50%.
+ *   Benchmark thread i plays neighbor i % neighbors. A pick gives its blocks
+ *   back with releaseBlocks(), as a closed connection does, so "interested"
+ *   stays full; RandomFirstPieces is 0, the rarest first picking is measured
+ *
+ * Score is ops/s, "bytes" the storage bytes/s, gc.alloc.rate.norm the bytes
+ * allocated per op.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileManagerBenchmark {
+
+	static int pieceSizeOf(int pieces) {
+		return pieces >= 1000000 ? 1024 : 16384;
+	}
+
+	@State(Scope.Benchmark)
+	public static class Storage {
+		@Param({"100", "10000", "1000000"})
+		public int pieces;
+
+		@Param({"raf", "mmap"})
+		public String storageBackend;
+
+		FileManager fm;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			BenchPeers.init(pieceSizeOf(this.pieces), this.pieces, "StorageBackend", this.storageBackend);
+			this.fm = BenchPeers.initLeecherFile();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Buffer {
+		byte[] data;
+
+		@Setup(Level.Trial)
+		public void setup(Storage storage) {
+			this.data = new byte[storage.fm.getBlockSize(0)];
+			new Random(5106).nextBytes(this.data);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Swarm {
+		@Param({"100", "10000", "1000000"})
+		public int pieces;
+
+		@Param({"1", "8", "64"})
+		public int neighbors;
+
+		FileManager fm;
+		String[] peerIds;
+		byte[][] bitfields;
+		final AtomicInteger nextThread = new AtomicInteger();
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			BenchPeers.init(pieceSizeOf(this.pieces), this.pieces, "RandomFirstPieces", "0");
+			this.fm = BenchPeers.initLeecherFile();
+			this.peerIds = new String[this.neighbors];
+			this.bitfields = new byte[this.neighbors][];
+			Random rnd = new Random(5106);
+			for(int i = 0; i < this.neighbors; i++) {
+				this.peerIds[i] = String.valueOf(2001 + i);
+				PieceSet have = new PieceSet(this.pieces);
+				for(int blockIdx = 0; blockIdx < this.pieces; blockIdx++) {
+					if(rnd.nextBoolean()) have.add(blockIdx);
+				}
+				this.bitfields[i] = have.toBitfield();
+				this.fm.insertBitfield(this.peerIds[i], this.bitfields[i], this.bitfields[i].length);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Neighbor {
+		String peerId;
+		byte[] bitfield;
+
+		@Setup(Level.Trial)
+		public void setup(Swarm swarm) {
+			int i = swarm.nextThread.getAndIncrement() % swarm.neighbors;
+			this.peerId = swarm.peerIds[i];
+			this.bitfield = swarm.bitfields[i];
+		}
+	}
+
+	@Benchmark
+	public int read(Storage storage, Buffer buffer, ByteCounter counter) {
+		int blockIdx = ThreadLocalRandom.current().nextInt(storage.pieces);
+		int len = storage.fm.read(blockIdx, buffer.data, buffer.data.length);
+		counter.bytes += len;
+		return len;
+	}
+
+	@Benchmark
+	public void write(Storage storage, Buffer buffer, ByteCounter counter) throws IOException {
+		// the last block may be shorter
+		int blockIdx = ThreadLocalRandom.current().nextInt(storage.pieces - 1);
+		storage.fm.writeRun(blockIdx, new ByteBuffer[] {ByteBuffer.wrap(buffer.data)});
+		counter.bytes += buffer.data.length;
+	}
+
+	@Benchmark
+	public boolean isInterested(Swarm swarm, Neighbor neighbor) {
+		return swarm.fm.isInterested(neighbor.peerId);
+	}
+
+	@Benchmark
+	public int pickInterestedFileBlock(Swarm swarm, Neighbor neighbor) {
+		int blockIdx = swarm.fm.pickInterestedFileBlock(neighbor.peerId);
+		if(blockIdx != -1) swarm.fm.releaseBlocks(neighbor.peerId, Collections.singletonList(blockIdx));
+		return blockIdx;
+	}
+
+	@Benchmark
+	public List<Integer> pickInterestedFileBlocks(Swarm swarm, Neighbor neighbor) {
+		// a pipeline full of requests, as Client asks when its outstanding requests are all answered
+		int max = SystemInfo.getSingletonObj().getRequestPipelineDepth();
+		List<Integer> picked = swarm.fm.pickInterestedFileBlocks(neighbor.peerId, max, Collections.<Integer>emptySet());
+		swarm.fm.releaseBlocks(neighbor.peerId, picked);
+		return picked;
+	}
+
+	@Benchmark
+	public void insertBitfield(Swarm swarm, Neighbor neighbor) {
+		// a reconnected neighbor, its previous bitfield is replaced
+		swarm.fm.insertBitfield(neighbor.peerId, neighbor.bitfield, neighbor.bitfield.length);
+	}
+
+	@Benchmark
+	public int getOwnBitfieldSize(Swarm swarm) {
+		return swarm.fm.getOwnBitfieldSize();
+	}
+}
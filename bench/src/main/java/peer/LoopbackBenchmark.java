@@ -0,0 +1,128 @@
+package peer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * REQUEST -> PIECE round trip over loopback TCP against the real Server thread
+ * of a seeder (1001, temp file): Server.Handler, ServerSession.reactions and
+ * the FileManager read (or the zero-copy upload).
+ *
+ * The benchmark plays the neighbor 1002 with its own ActualMsg, the way Client
+ * does: handshake, BITFIELD, INTERESTED, UNCHOKE by the PreferSelect rechoke,
+ * then one REQUEST and its PIECE per op, cycling over the pieces. Client itself
+ * is not driven, its loop also picks pieces and writes them to disk.
+ *
+ * Score is round trips/s, the "bytes" counter the piece bytes/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopbackBenchmark {
+	private static final int BLOCKS = 16;
+
+	@Param({"16384", "262144", "1048576"})
+	public int pieceSize;
+
+	@Param({"false", "true"})
+	public String zeroCopyUpload;
+
+	private Socket socket;
+	private ActualMsg actMsg;
+	private OutputStream out;
+	private InputStream in;
+	private int nextBlock = 0;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		BenchPeers.init(this.pieceSize, BLOCKS, "ZeroCopyUpload", this.zeroCopyUpload);
+		BenchPeers.initSeederFile();
+		new Server().start();
+
+		this.socket = connect(BenchPeers.getHost().getPort());
+		this.actMsg = new ActualMsg(BenchPeers.getHost());
+		this.out = this.actMsg.openOutput(this.socket.getOutputStream());
+		this.in = this.actMsg.openInput(this.socket.getInputStream());
+
+		// handshake as the neighbor, the server answers with the host id
+		HandShake handShake = new HandShake(BenchPeers.getHost());
+		handShake.setPeerID(BenchPeers.NEIGHBOR_ID);
+		handShake.SendHandShake(this.out);
+		HandShake reply = MsgCodec.create().readHandShake(this.in);
+		if(reply == null || !BenchPeers.HOST_ID.equals(reply.getPeerID())) {
+			throw new IOException("handshake failed, reply " + reply);
+		}
+		expect(ActualMsg.BITFIELD);
+		this.actMsg.send(this.out, ActualMsg.INTERESTED, 0);
+		expect(ActualMsg.UNCHOKE);
+	}
+
+	private static Socket connect(int port) throws Exception {
+		// the server thread binds its listener after start()
+		for(int i = 0; ; i++) {
+			try {
+				return new Socket(InetAddress.getLoopbackAddress(), port);
+			}
+			catch(ConnectException e) {
+				if(i == 50) throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private void expect(byte type) throws IOException {
+		byte got;
+		while((got = this.actMsg.recv(this.in)) != type) {
+			if(got == -1) throw new IOException("connection closed waiting for type " + type);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		SystemInfo sysInfo = SystemInfo.getSingletonObj();
+		// the server thread then ends without a severe log
+		sysInfo.setIsNeighborsComplete();
+		sysInfo.getServerListener().close();
+		this.socket.close();
+		Scheduler.shutdown();
+	}
+
+	@Benchmark
+	public int requestPiece(ByteCounter counter) throws IOException {
+		int blockIdx = this.nextBlock;
+		this.nextBlock = (blockIdx + 1) % BLOCKS;
+		this.actMsg.send(this.out, ActualMsg.REQUEST, blockIdx);
+		byte type;
+		// a rechoke may send CHOKE / UNCHOKE in between, a choked request gets no answer
+		while((type = this.actMsg.recv(this.in)) != ActualMsg.PIECE) {
+			if(type == -1) throw new IOException("connection closed");
+			if(type == ActualMsg.UNCHOKE) this.actMsg.send(this.out, ActualMsg.REQUEST, blockIdx);
+		}
+		byte[] data = this.actMsg.pieceMsg.getData();
+		counter.bytes += data.length;
+		BufferPool.getInstance().release(data);
+		return this.actMsg.pieceMsg.blockIdx;
+	}
+}
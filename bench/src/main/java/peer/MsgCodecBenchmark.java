@@ -0,0 +1,155 @@
+package peer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ActualMsg send() / recv() through the codec of Common.cfg (binary), without
+ * socket: send() writes to a stream copying the bytes and dropping them, recv()
+ * reads one encoded msg over and over.
+ *
+ * - control: the no payload and short msgs, by type
+ * - bitfield: BITFIELD of 100 - 1M pieces
+ * - piece: PIECE of 1 KB - 1 MB
+ *
+ * Score is msgs/s, the "bytes" counter the encoded bytes/s, gc.alloc.rate.norm
+ * (BenchMain runs -prof gc) the bytes allocated per msg.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MsgCodecBenchmark {
+
+	/**
+	 * One msg, encoded once for recv()
+	 */
+	abstract static class Msg {
+		ActualMsg actMsg;
+		OutputStream out;
+		InputStream in;
+		int msgBytes;
+
+		void open(int pieceSize, int blockNum) throws Exception {
+			BenchPeers.init(pieceSize, blockNum);
+			this.actMsg = new ActualMsg(BenchPeers.getNeighbor());
+			this.out = this.actMsg.openOutput(new BenchPeers.CopyOutputStream());
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			send(this.actMsg.openOutput(encoded));
+			this.msgBytes = encoded.size();
+			this.in = this.actMsg.openInput(new BenchPeers.LoopInputStream(encoded.toByteArray()));
+		}
+
+		abstract void send(OutputStream opStream) throws IOException;
+	}
+
+	@State(Scope.Thread)
+	public static class Control extends Msg {
+		@Param({"COMPLETE", "CHOKE", "UNCHOKE", "INTERESTED", "NOTINTERESTED", "HAVE", "REQUEST", "CANCEL"})
+		public String type;
+		byte msgType;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			this.msgType = BenchPeers.typeOf(this.type);
+			open(16384, 64);
+		}
+
+		void send(OutputStream opStream) throws IOException {
+			this.actMsg.send(opStream, this.msgType, 7);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Bitfield extends Msg {
+		@Param({"100", "10000", "1000000"})
+		public int pieces;
+		byte[] bitfield;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			this.bitfield = new byte[(this.pieces + 7) / 8];
+			new Random(5106).nextBytes(this.bitfield);
+			open(1024, this.pieces);
+		}
+
+		void send(OutputStream opStream) throws IOException {
+			this.actMsg.send(opStream, ActualMsg.BITFIELD, this.bitfield);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Piece extends Msg {
+		@Param({"1024", "16384", "262144", "1048576"})
+		public int pieceSize;
+		byte[] data;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			this.data = new byte[this.pieceSize];
+			new Random(5106).nextBytes(this.data);
+			open(this.pieceSize, 64);
+		}
+
+		void send(OutputStream opStream) throws IOException {
+			this.actMsg.send(opStream, ActualMsg.PIECE, 3, this.data);
+		}
+	}
+
+	@Benchmark
+	public void sendControl(Control msg, ByteCounter counter) throws IOException {
+		msg.send(msg.out);
+		counter.bytes += msg.msgBytes;
+	}
+
+	@Benchmark
+	public byte recvControl(Control msg, ByteCounter counter) throws IOException {
+		counter.bytes += msg.msgBytes;
+		return msg.actMsg.recv(msg.in);
+	}
+
+	@Benchmark
+	public void sendBitfield(Bitfield msg, ByteCounter counter) throws IOException {
+		msg.send(msg.out);
+		counter.bytes += msg.msgBytes;
+	}
+
+	@Benchmark
+	public byte recvBitfield(Bitfield msg, ByteCounter counter) throws IOException {
+		counter.bytes += msg.msgBytes;
+		return msg.actMsg.recv(msg.in);
+	}
+
+	@Benchmark
+	public void sendPiece(Piece msg, ByteCounter counter) throws IOException {
+		msg.send(msg.out);
+		counter.bytes += msg.msgBytes;
+	}
+
+	@Benchmark
+	public byte recvPiece(Piece msg, ByteCounter counter) throws IOException {
+		counter.bytes += msg.msgBytes;
+		byte type = msg.actMsg.recv(msg.in);
+		// the data is a BufferPool array, Client gives it back the same way
+		BufferPool.getInstance().release(msg.actMsg.pieceMsg.getData());
+		return type;
+	}
+}
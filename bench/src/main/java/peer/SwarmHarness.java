@@ -0,0 +1,439 @@
+package peer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local swarm benchmark, N peer processes on loopback:
+ *
+ * 1. writes PeerInfo.cfg / Common.cfg for N peers (1001 ...) and the seeders'
+ *    file (random, same seed every run) in the run directory
+ * 2. starts "java PeerProcess [id]" for every peer, the class path of the
+ *    harness, stdout to [id].out
+ * 3. polls the metrics endpoint of every peer (MetricsPortOffset) for the
+ *    pieces remaining and duplicate bytes, until every leecher is complete
+ *    and every process exited, or the timeout kills them
+ * 4. checks the SHA-256 of every leecher's file against the seeder's
+ * 5. writes report.json: per peer time to first piece, time to complete,
+ *    throughput and duplicate bytes, and the swarm completion time
+ *
+ * Times are ms from the start of the peer process, as fine as the poll
+ * interval. Exits 1 if a leecher didn't complete or has a wrong file.
+ *
+ * java -cp bench/target/benchmarks.jar peer.SwarmHarness [options]
+ *   --peers N          peers, default 4
+ *   --seeders N        peers having the file, default 1
+ *   --file-size S      bytes, K / M / G suffix, default 16M
+ *   --piece-size S     default 16K
+ *   --timeout SEC      default 300
+ *   --poll-ms MS       default 50
+ *   --dir PATH         run directory, default a new temp directory
+ *   --opt KEY=VALUE    a Common.cfg param, repeatable (also the required ones)
+ *   --jvm ARG          a JVM arg of the peers, repeatable
+ */
+public final class SwarmHarness {
+	private static final int FIRST_PEER_ID = 1001;
+	private static final int METRICS_PORT_OFFSET = 1000;
+	// peers keep running ~15 sec after the swarm is complete (IsSystemComplete)
+	private static final long EXIT_GRACE_MS = 60_000;
+
+	private int peerNum = 4;
+	private int seederNum = 1;
+	private long fileSize = 16L << 20;
+	private int pieceSize = 16 << 10;
+	private long timeoutMs = 300_000;
+	private long pollMs = 50;
+	private File dir = null;
+	private final LinkedHashMap<String, String> common = new LinkedHashMap<String, String>();
+	private final List<String> jvmArgs = new ArrayList<String>();
+
+	/**
+	 * One peer process and what the polls saw
+	 */
+	private static final class PeerRun {
+		final String id;
+		final int port;
+		final boolean isSeeder;
+		Process process;
+		long startNs;
+		long firstPieceMs = -1;
+		long completeMs = -1;
+		long duplicateBytes = 0;
+		boolean isVerified;
+
+		PeerRun(String id, int port, boolean isSeeder) {
+			this.id = id;
+			this.port = port;
+			this.isSeeder = isSeeder;
+		}
+
+		long elapsedMs() {
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startNs);
+		}
+	}
+
+	private SwarmHarness() {
+		// required params, in the order of Common.cfg
+		this.common.put("NumberOfPreferredNeighbors", "3");
+		this.common.put("UnchokingInterval", "5");
+		this.common.put("OptimisticUnchokingInterval", "10");
+		this.common.put("FileName", "thefile");
+		this.common.put("FileSize", null);
+		this.common.put("PieceSize", null);
+		this.common.put("DebugLog", "false");
+	}
+
+	public static void main(String[] args) throws Exception {
+		SwarmHarness harness = new SwarmHarness();
+		harness.parseArgs(args);
+		System.exit(harness.run() ? 0 : 1);
+	}
+
+	private void parseArgs(String[] args) throws IOException {
+		for(int i = 0; i < args.length; i++) {
+			String value = i + 1 < args.length ? args[i + 1] : null;
+			if(value == null) throw new IllegalArgumentException("missing value of " + args[i]);
+			switch(args[i]) {
+				case "--peers": this.peerNum = Integer.parseInt(value); break;
+				case "--seeders": this.seederNum = Integer.parseInt(value); break;
+				case "--file-size": this.fileSize = parseSize(value); break;
+				case "--piece-size": this.pieceSize = (int) parseSize(value); break;
+				case "--timeout": this.timeoutMs = Long.parseLong(value) * 1000; break;
+				case "--poll-ms": this.pollMs = Long.parseLong(value); break;
+				case "--dir": this.dir = new File(value); break;
+				case "--jvm": this.jvmArgs.add(value); break;
+				case "--opt":
+					int eq = value.indexOf('=');
+					if(eq <= 0) throw new IllegalArgumentException("--opt needs KEY=VALUE, get " + value);
+					this.common.put(value.substring(0, eq), value.substring(eq + 1));
+					break;
+				default: throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+			i++;
+		}
+		if(this.seederNum < 1 || this.seederNum >= this.peerNum) {
+			throw new IllegalArgumentException("needs 1 to peers - 1 seeders");
+		}
+		// the seeder file is generated in one array
+		if(this.fileSize > Integer.MAX_VALUE) throw new IllegalArgumentException("FileSize over 2 GB");
+		this.common.put("FileSize", String.valueOf(this.fileSize));
+		this.common.put("PieceSize", String.valueOf(this.pieceSize));
+		this.common.put("MetricsPortOffset", String.valueOf(METRICS_PORT_OFFSET));
+		if(this.dir == null) this.dir = Files.createTempDirectory("p2p-swarm").toFile();
+	}
+
+	private static long parseSize(String s) {
+		char unit = Character.toUpperCase(s.charAt(s.length() - 1));
+		int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0;
+		String digits = shift == 0 ? s : s.substring(0, s.length() - 1);
+		return Long.parseLong(digits) << shift;
+	}
+
+	private boolean run() throws Exception {
+		List<PeerRun> peers = setUp();
+		System.out.println(String.format(
+			"swarm of %s peers (%s seeders), %s bytes in %s byte pieces, in %s",
+			this.peerNum, this.seederNum, this.fileSize, this.pieceSize, this.dir
+		));
+		long startMs = System.currentTimeMillis();
+		for(PeerRun p: peers) start(p);
+		boolean isTimedOut = waitForSwarm(peers);
+		long swarmMs = System.currentTimeMillis() - startMs;
+
+		File seederFile = fileOf(peers.get(0));
+		byte[] expected = sha256(seederFile);
+		boolean isAllVerified = true;
+		for(PeerRun p: peers) {
+			if(p.isSeeder) continue;
+			File f = fileOf(p);
+			p.isVerified = f.length() == this.fileSize && Arrays.equals(expected, sha256(f));
+			isAllVerified &= p.isVerified;
+		}
+
+		String json = report(peers, isTimedOut, isAllVerified, swarmMs);
+		boolean isAllComplete = true;
+		for(PeerRun p: peers) {
+			if(!p.isSeeder && p.completeMs < 0) isAllComplete = false;
+		}
+		File reportFile = new File(this.dir, "report.json");
+		try(PrintWriter out = new PrintWriter(reportFile, "UTF-8")) {
+			out.print(json);
+		}
+		System.out.print(json);
+		System.out.println("report written to " + reportFile);
+		return isAllComplete && isAllVerified;
+	}
+
+	/**
+	 * Config files and the seeders' file
+	 */
+	private List<PeerRun> setUp() throws IOException {
+		ArrayList<PeerRun> peers = new ArrayList<PeerRun>();
+		StringBuilder peerInfo = new StringBuilder();
+		for(int i = 0; i < this.peerNum; i++) {
+			PeerRun p = new PeerRun(String.valueOf(FIRST_PEER_ID + i), freePortPair(), i < this.seederNum);
+			peers.add(p);
+			peerInfo.append(String.format("%s 127.0.0.1 %s %s%n", p.id, p.port, p.isSeeder ? 1 : 0));
+		}
+		StringBuilder commonCfg = new StringBuilder();
+		for(Map.Entry<String, String> e: this.common.entrySet()) {
+			commonCfg.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		}
+		this.dir.mkdirs();
+		Files.write(new File(this.dir, "PeerInfo.cfg").toPath(), peerInfo.toString().getBytes(StandardCharsets.US_ASCII));
+		Files.write(new File(this.dir, "Common.cfg").toPath(), commonCfg.toString().getBytes(StandardCharsets.US_ASCII));
+
+		// the seeders' file, leechers start without one
+		byte[] data = new byte[(int) this.fileSize];
+		new Random(5106).nextBytes(data);
+		for(PeerRun p: peers) {
+			File f = fileOf(p);
+			deleteDir(f.getParentFile());
+			if(!p.isSeeder) continue;
+			f.getParentFile().mkdirs();
+			Files.write(f.toPath(), data);
+		}
+		new File(this.dir, this.common.get("FileName") + ".sha256").delete();
+		deleteDir(new File(this.dir, "log"));
+		return peers;
+	}
+
+	private File fileOf(PeerRun p) {
+		return new File(new File(this.dir, p.id), this.common.get("FileName"));
+	}
+
+	private static void deleteDir(File d) {
+		File[] files = d.listFiles();
+		if(files != null) {
+			for(File f: files) f.delete();
+		}
+		d.delete();
+	}
+
+	/**
+	 * @return a free port whose metrics port is free too
+	 */
+	private static int freePortPair() throws IOException {
+		while(true) {
+			int port;
+			try(ServerSocket s = new ServerSocket(0)) {
+				port = s.getLocalPort();
+			}
+			if(port + METRICS_PORT_OFFSET > 65535) continue;
+			try(ServerSocket s = new ServerSocket(port + METRICS_PORT_OFFSET)) {
+				return port;
+			}
+			catch(IOException e) {
+				// taken, try another one
+			}
+		}
+	}
+
+	private void start(PeerRun p) throws IOException {
+		String java = ProcessHandle.current().info().command().orElse("java");
+		ArrayList<String> cmd = new ArrayList<String>();
+		cmd.add(java);
+		cmd.addAll(this.jvmArgs);
+		cmd.add("-cp");
+		cmd.add(absoluteClassPath());
+		cmd.add("PeerProcess");
+		cmd.add(p.id);
+		ProcessBuilder pb = new ProcessBuilder(cmd)
+			.directory(this.dir)
+			.redirectErrorStream(true)
+			.redirectOutput(new File(this.dir, p.id + ".out"));
+		p.startNs = System.nanoTime();
+		p.process = pb.start();
+	}
+
+	/**
+	 * Class path of the harness, the peers run in the run directory
+	 */
+	private static String absoluteClassPath() {
+		StringBuilder sb = new StringBuilder();
+		for(String entry: System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if(sb.length() > 0) sb.append(File.pathSeparator);
+			sb.append(new File(entry).getAbsolutePath());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Poll until every leecher is complete and every peer exited
+	 * @return true if the timeout killed the swarm before every leecher was complete
+	 */
+	private boolean waitForSwarm(List<PeerRun> peers) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + this.timeoutMs;
+		long completeAt = -1;
+		while(true) {
+			boolean isAllComplete = true;
+			boolean isAllExited = true;
+			for(PeerRun p: peers) {
+				if(p.process.isAlive()) {
+					isAllExited = false;
+					poll(p);
+				}
+				if(!p.isSeeder && p.completeMs < 0) isAllComplete = false;
+			}
+			long now = System.currentTimeMillis();
+			if(isAllComplete && completeAt < 0) completeAt = now;
+			if(isAllExited) return false;
+			boolean isTimedOut = now > deadline;
+			if(isTimedOut || (completeAt >= 0 && now - completeAt > EXIT_GRACE_MS)) {
+				for(PeerRun p: peers) {
+					if(p.process.isAlive()) {
+						System.out.println("peer " + p.id + " still running, killed");
+						p.process.destroyForcibly();
+					}
+				}
+				for(PeerRun p: peers) p.process.waitFor(10, TimeUnit.SECONDS);
+				return isTimedOut && !isAllComplete;
+			}
+			Thread.sleep(this.pollMs);
+		}
+	}
+
+	/**
+	 * Read the metrics of the peer, nothing while its endpoint is not up yet
+	 */
+	private void poll(PeerRun p) {
+		Map<String, Long> metrics = fetchMetrics(p.port + METRICS_PORT_OFFSET);
+		Long total = metrics.get("p2p_pieces_total");
+		Long remaining = metrics.get("p2p_pieces_remaining");
+		if(total == null || remaining == null || total == 0) return;
+		long ms = p.elapsedMs();
+		if(!p.isSeeder && p.firstPieceMs < 0 && remaining < total) p.firstPieceMs = ms;
+		if(!p.isSeeder && p.completeMs < 0 && remaining == 0) p.completeMs = ms;
+		Long dup = metrics.get("p2p_duplicate_bytes_total");
+		if(dup != null) p.duplicateBytes = dup;
+	}
+
+	/**
+	 * @return the unlabeled metrics of the endpoint, empty if it doesn't answer
+	 */
+	private static Map<String, Long> fetchMetrics(int port) {
+		LinkedHashMap<String, Long> metrics = new LinkedHashMap<String, Long>();
+		try(Socket s = new Socket()) {
+			s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 200);
+			s.setSoTimeout(1000);
+			OutputStream out = s.getOutputStream();
+			out.write("GET /metrics HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while((line = in.readLine()) != null) {
+				int sp = line.indexOf(' ');
+				if(sp <= 0 || !line.startsWith("p2p_") || line.indexOf('{') != -1) continue;
+				try {
+					metrics.put(line.substring(0, sp), Long.parseLong(line.substring(sp + 1).trim()));
+				}
+				catch(NumberFormatException e) {
+					// not a metric line
+				}
+			}
+		}
+		catch(IOException e) {
+			// not up yet or shutting down
+		}
+		return metrics;
+	}
+
+	private static byte[] sha256(File f) throws IOException {
+		if(!f.exists()) return new byte[0];
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			try(InputStream in = new DigestInputStream(new FileInputStream(f), md)) {
+				byte[] buf = new byte[1 << 16];
+				while(in.read(buf) != -1) {}
+			}
+			return md.digest();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private String report(List<PeerRun> peers, boolean isTimedOut, boolean isAllVerified, long swarmMs) {
+		// the last leecher, unknown if one never completed
+		long completionMs = 0;
+		long duplicateBytes = 0;
+		int leecherNum = 0;
+		for(PeerRun p: peers) {
+			duplicateBytes += p.duplicateBytes;
+			if(p.isSeeder) continue;
+			leecherNum++;
+			if(p.completeMs < 0 || completionMs < 0) completionMs = -1;
+			else completionMs = Math.max(completionMs, p.completeMs);
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"peers\": ").append(this.peerNum).append(",\n");
+		sb.append("  \"seeders\": ").append(this.seederNum).append(",\n");
+		sb.append("  \"fileSize\": ").append(this.fileSize).append(",\n");
+		sb.append("  \"pieceSize\": ").append(this.pieceSize).append(",\n");
+		sb.append("  \"common\": {");
+		String sep = "";
+		for(Map.Entry<String, String> e: this.common.entrySet()) {
+			sb.append(sep).append(quote(e.getKey())).append(": ").append(quote(e.getValue()));
+			sep = ", ";
+		}
+		sb.append("},\n");
+		sb.append("  \"timedOut\": ").append(isTimedOut).append(",\n");
+		sb.append("  \"allVerified\": ").append(isAllVerified).append(",\n");
+		sb.append("  \"swarmCompletionMs\": ").append(nullIfNegative(completionMs)).append(",\n");
+		sb.append("  \"totalThroughputBytesPerSec\": ").append(nullIfNegative(throughput(leecherNum * this.fileSize, completionMs))).append(",\n");
+		sb.append("  \"duplicateBytes\": ").append(duplicateBytes).append(",\n");
+		sb.append("  \"wallClockMs\": ").append(swarmMs).append(",\n");
+		sb.append("  \"peerResults\": [\n");
+		for(int i = 0; i < peers.size(); i++) {
+			PeerRun p = peers.get(i);
+			sb.append("    {\"id\": ").append(quote(p.id));
+			sb.append(", \"seeder\": ").append(p.isSeeder);
+			sb.append(", \"firstPieceMs\": ").append(p.isSeeder ? "null" : nullIfNegative(p.firstPieceMs));
+			sb.append(", \"completeMs\": ").append(p.isSeeder ? "null" : nullIfNegative(p.completeMs));
+			sb.append(", \"throughputBytesPerSec\": ").append(p.isSeeder ? "null" : nullIfNegative(throughput(this.fileSize, p.completeMs)));
+			sb.append(", \"duplicateBytes\": ").append(p.duplicateBytes);
+			sb.append(", \"verified\": ").append(p.isSeeder ? "null" : String.valueOf(p.isVerified));
+			sb.append(", \"exitCode\": ").append(p.process.isAlive() ? "null" : String.valueOf(p.process.exitValue()));
+			sb.append(i + 1 < peers.size() ? "},\n" : "}\n");
+		}
+		sb.append("  ]\n}\n");
+		return sb.toString();
+	}
+
+	private static long throughput(long bytes, long ms) {
+		if(ms <= 0) return -1;
+		return bytes * 1000 / ms;
+	}
+
+	private static String nullIfNegative(long v) {
+		return v < 0 ? "null" : String.valueOf(v);
+	}
+
+	private static String quote(String s) {
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -83,16 +83,19 @@ public class PeerProcess {
 			Scanner fileReader = new Scanner(cfgFile);
 			
 			ArrayList<String> infoList = new ArrayList<String>();
+			HashMap<String, String> optionalParams = new HashMap<String, String>();
 			System.out.println(String.format("[%s] Start reading Common from %s", hostPeerId, cfgDir + fileName));
 			while (fileReader.hasNextLine()) {
 				String infoLine = fileReader.nextLine();
-				String[] infos = infoLine.split("\\s+");
+				String[] infos = infoLine.trim().split("\\s+");
+				if (infos.length < 2) continue;
 				infoList.add(infos[1]);
+				optionalParams.put(infos[0], infos[1]);
 			}
 			fileReader.close();
 			
-			/** Set up peer's system parameters */
-			SystemInfo s = new SystemInfo(infoList);
+			/** Set up peer's system parameters, the first six are required by sequences */
+			SystemInfo s = new SystemInfo(infoList, optionalParams);
 		} 
 		catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -114,6 +117,11 @@ public class PeerProcess {
 			/** Get peer's system parameter */
 			SystemInfo sysInfo = SystemInfo.getSingletonObj();
 			sysInfo.initDebugMode(debug);
+			/* "replay" or "replay-paced" [trace file]: feed a recorded trace to the reactions, see TraceReplay */
+			boolean isReplay = args.length > 1 && args[1].startsWith("replay");
+			if(isReplay) {
+				sysInfo.initReplayMode();
+			}
 			
 			/** Set up peer's logger */
 			LogHandler logging = new LogHandler();
@@ -129,15 +137,50 @@ public class PeerProcess {
 			}
 			String peerFileDir = peerStoreDir + '/' + sysInfo.getFileName();
 			String mode = sysInfo.getHostPeer().getHasFile() ? "r" : "rw";
+			if(isReplay && mode == "rw") {
+				// the replayed pieces have no real data, keep the downloaded file
+				peerFileDir = peerStoreDir + "/replay_" + sysInfo.getFileName();
+				new File(peerFileDir).delete();
+			}
 			FileManager fm = FileManager.getInstance(
 				peerFileDir,
 				mode,
 				sysInfo.getFileSize(),
 				sysInfo.getPieceSize()
 			);
+			// per piece SHA-256, the seeder creates it
+			fm.initPieceHashes(new File(cfgDir + sysInfo.getFileName() + ".sha256"));
+			if(mode == "rw") {
+				// resumed download, recover the blocks written after the last checkpoint
+				fm.recheckUncertainBlocks();
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					public void run() {
+						fm.checkpoint();
+					}
+				}));
+			}
+
+			if(isReplay) {
+				String traceFile = args.length > 2 ? args[2] : peerStoreDir + "/trace.bin";
+				TraceReplay.replay(new File(traceFile), "replay-paced".equals(args[1]));
+				System.exit(0);
+			}
+			Metrics.start();
+			if(sysInfo.getTraceEvents()) {
+				TraceRecorder.init(new File(peerStoreDir + "/trace.bin"), sysInfo.getHostPeer().getId());
+			}
 
       /* Start peer server thread -> inside we create Handler to handle sockets */
-			Server server = new Server();
+			Thread server = null;
+			if("nio".equals(sysInfo.getServerEngine()) && "binary".equals(sysInfo.getMsgCodec())) {
+				server = new NioServer();
+			}
+			else {
+				if("nio".equals(sysInfo.getServerEngine())) {
+					logging.writeLog("warning", "(peer process) nio server engine needs MessageCodec binary, use thread engine");
+				}
+				server = new Server();
+			}
 			server.start();
 
 			/* Start building client threads for other target hosts */
@@ -150,15 +193,20 @@ public class PeerProcess {
 
 				for(Entry<String, Peer> n: sysInfo.getNeighborMap().entrySet()) {
 					Client client = new Client(n.getValue());
-					Thread t = new Thread(client);
-					t.start();
+					ConnExecutor.execute(client);
 				}
+				Client.broadcastIfComplete();
 			}
 			else {
 				logging.writeLog("(peer process) Peer hasFile is true, no need start client threads to receive from others");
 			}
 
-			logging.writeLog("(peer process) Number of thread create by peer: " + java.lang.Thread.activeCount());
+			logging.writeLog(String.format(
+				"(peer process) Number of thread create by peer: %s, carrier threads: %s, virtual threads: %s",
+				java.lang.Thread.activeCount(),
+				ConnExecutor.getCarrierThreadCount(),
+				ConnExecutor.isVirtual()
+			));
 			return;
 		}
 		catch (Exception e) {
@@ -1,16 +1,21 @@
 package peer;
 
 import java.io.*;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
 
 import utils.LogHandler;
 // ActualMsg always have 4 objects for 4 types of message
 // It will not be the object it created at the begining after recv()
 // but it doesn't matter.
 // 
-// This class is not thread-safe
+// One ActualMsg belongs to one connection. send() can be called from
+// the connection thread and the timer threads, it is serialized by sendLock.
+// recv() is not thread-safe, only the connection thread reads.
 public class ActualMsg{
 	Peer interConnPeer; // the other peer communicating with msg
-	// pretend to be enum
+	// pretend to be enum, the numbers on the wire are BinaryMsgCodec's
 	public static byte COMPLETE = 0;
 	public static byte CHOKE = 1;
 	public static byte UNCHOKE = 2;
@@ -20,17 +25,35 @@ public class ActualMsg{
 	public static byte BITFIELD = 6;
 	public static byte REQUEST = 7;
 	public static byte PIECE = 8;
+	// endgame, withdraw a REQUEST once the block arrived from another peer
+	public static byte CANCEL = 9;
+	// names by type, for Metrics and TraceReplay
+	static final String[] TYPE_NAMES = {
+		"COMPLETE", "CHOKE", "UNCHOKE", "INTERESTED", "NOTINTERESTED", "HAVE", "BITFIELD", "REQUEST", "PIECE", "CANCEL"
+	};
 	// 5 msg type
 	// end, choke, unchoke, interested, notinterested have no payload
 	// only msg type and msg length
 	// noPayloadMsg is actually the header
 	public NoPayloadMsg noPayloadMsg = new NoPayloadMsg();
-	// have, request have 4 bytes payload
+	// have, request, cancel have 4 bytes payload
 	public ShortPayloadMsg shortMsg = new ShortPayloadMsg();
 	// bitfield have a variable length bitfield
 	public BitfieldMsg bitfieldMsg = new BitfieldMsg();
 	// piece have a 4 bytes blockIdx and variable length of data
 	public PieceMsg pieceMsg = new PieceMsg();
+	// msg objects for send(), kept apart from the received ones above
+	// so a timer thread sending won't overwrite a msg being handled
+	private final NoPayloadMsg outNoPayloadMsg = new NoPayloadMsg();
+	private final ShortPayloadMsg outShortMsg = new ShortPayloadMsg();
+	private final BitfieldMsg outBitfieldMsg = new BitfieldMsg();
+	private final PieceMsg outPieceMsg = new PieceMsg();
+
+	// wire format, selected by MessageCodec in Common.cfg
+	private final MsgCodec codec = MsgCodec.create();
+	private final ReentrantLock sendLock = new ReentrantLock();
+	// side of the connection for TraceRecorder, servers learn the peer after the handshake
+	private final boolean isServerSide;
 
 	private static LogHandler logging = new LogHandler();
 	
@@ -38,6 +61,7 @@ public class ActualMsg{
 	 * Actual msg object create for sending message to multiple peers
 	 */
 	ActualMsg() {
+		this.isServerSide = true;
 	}
 
 	/**
@@ -46,36 +70,76 @@ public class ActualMsg{
 	 */
 	ActualMsg(Peer interConnPeer) {
 		this.interConnPeer = interConnPeer;
+		this.isServerSide = false;
+	}
+
+	/**
+	 * Set the inter-connected peer, for connections which know the peer after handshake
+	 * @param interConnPeer
+	 */
+	void setInterConnPeer(Peer interConnPeer) {
+		this.interConnPeer = interConnPeer;
+	}
+
+	/**
+	 * Wrap socket output stream for the codec, use the returned stream to send()
+	 */
+	public OutputStream openOutput(OutputStream out) throws IOException {
+		return this.codec.openOutput(out);
 	}
 
+	/**
+	 * Wrap socket output for the codec, the stream may support zero-copy sendFileBlock()
+	 */
+	public OutputStream openOutput(Socket socket) throws IOException {
+		return this.codec.openOutput(socket);
+	}
 
+	/**
+	 * Wrap socket input stream for the codec, use the returned stream to recv()
+	 */
+	public InputStream openInput(InputStream in) throws IOException {
+		return this.codec.openInput(in);
+	}
 
 	/**
 	 * send() for 
 	 * (1) COMPLETE CHOKE UNCHOKE INTERESTED NOTINTERESTED
-	 * (2) HAVE REQUEST
+	 * (2) HAVE REQUEST CANCEL
 	 * @param      out          The out
 	 * @param      type         The type
 	 * @param      blockIdx     The block index ( for (1) command this can be any number)
 	 *
 	 * @throws     IOException  exception, sth is wrong
 	 */
-	public void send(ObjectOutputStream opStream, byte type, int blockIdx) throws IOException{
-		// ObjectOutputStream opStream = new ObjectOutputStream(out);
-		opStream.reset();
-		if(type <= NOTINTERESTED){
-			this.noPayloadMsg.setData(1,type);
-			opStream.writeObject(this.noPayloadMsg);
-		}
-		else if (type != BITFIELD && type < PIECE) {
-			this.shortMsg.setData(5,type,blockIdx);
-			opStream.writeObject(this.shortMsg);
+	public void send(OutputStream opStream, byte type, int blockIdx) throws IOException{
+		this.sendLock.lock();
+		try{
+			if(type <= NOTINTERESTED){
+				this.outNoPayloadMsg.setData(1,type);
+				this.codec.write(opStream, this.outNoPayloadMsg);
+				Metrics.onSend(type);
+				TraceRecorder.recordSend(this.isServerSide, this.interConnPeer, type, -1, 1);
+			}
+			else if (isShortMsgType(type)) {
+				this.outShortMsg.setData(5,type,blockIdx);
+				this.codec.write(opStream, this.outShortMsg);
+				Metrics.onSend(type);
+				TraceRecorder.recordSend(this.isServerSide, this.interConnPeer, type, blockIdx, 5);
+			}
+			else{
+				System.err.println("ActualMsg send: wrong type");
+			}
 		}
-		else{
-			System.err.println("ActualMsg send: wrong type");
-			return;
+		finally{
+			this.sendLock.unlock();
 		}
-		opStream.flush();
+	}
+	/**
+	 * @return true for the msg types with a 4 bytes block index payload
+	 */
+	public static boolean isShortMsgType(byte type) {
+		return type == HAVE || type == REQUEST || type == CANCEL;
 	}
 	/**
 	 * send() for BITFIELD
@@ -86,16 +150,21 @@ public class ActualMsg{
 	 *
 	 * @throws     IOException  exception, sth is wrong
 	 */
-	public void send(ObjectOutputStream opStream, byte type, byte[] bitfield) throws IOException{
-		//ObjectOutputStream opStream = new ObjectOutputStream(out);
-		opStream.reset();
+	public void send(OutputStream opStream, byte type, byte[] bitfield) throws IOException{
 		if(type != BITFIELD) {
 			System.err.println("ActualMsg send: wrong type");
 			return;
 		}
-		this.bitfieldMsg.setData(1+bitfield.length,type, bitfield);
-		opStream.writeObject(this.bitfieldMsg);
-		opStream.flush();
+		this.sendLock.lock();
+		try{
+			this.outBitfieldMsg.setData(1+bitfield.length,type, bitfield);
+			this.codec.write(opStream, this.outBitfieldMsg);
+			Metrics.onSend(type);
+			TraceRecorder.recordSend(this.isServerSide, this.interConnPeer, type, -1, 1+bitfield.length);
+		}
+		finally{
+			this.sendLock.unlock();
+		}
 	}
 	/**
 	 * send() for PIECE
@@ -107,56 +176,129 @@ public class ActualMsg{
 	 *
 	 * @throws     IOException  exception, sth is wrong
 	 */
-	public void send(ObjectOutputStream opStream, byte type, int blockIdx, byte[] data) throws IOException{
-		//ObjectOutputStream opStream = new ObjectOutputStream(out);
-		opStream.reset();
+	public void send(OutputStream opStream, byte type, int blockIdx, byte[] data) throws IOException{
 		if(type != PIECE) {
 			System.err.println("ActualMsg send: wrong type");
 			return;
 		}
-		this.pieceMsg.setData(5+data.length, type, blockIdx, data);
-		opStream.writeObject(this.pieceMsg);
-		opStream.flush();
+		this.sendLock.lock();
+		try{
+			this.outPieceMsg.setData(5+data.length, type, blockIdx, data);
+			this.codec.write(opStream, this.outPieceMsg);
+			Metrics.onSend(type);
+			TraceRecorder.recordSend(this.isServerSide, this.interConnPeer, type, blockIdx, 5+data.length);
+		}
+		finally{
+			this.sendLock.unlock();
+		}
+	}
+	/**
+	 * send() for PIECE, read the block from file manager.
+	 * The block goes from the file straight to the socket (FileChannel.transferTo)
+	 * when the stream supports it, otherwise it is copied through a BufferPool array.
+	 *
+	 * @param      out          The out
+	 * @param      fm           The file manager owning the block
+	 * @param      blockIdx     The block index
+	 *
+	 * @throws     IOException  exception, sth is wrong
+	 */
+	public void sendFileBlock(OutputStream opStream, FileManager fm, int blockIdx) throws IOException{
+		int blockLen = fm.getBlockSize(blockIdx);
+		if(blockLen == -1) {
+			System.err.println("ActualMsg send: wrong block index");
+			return;
+		}
+		FileChannel file = fm.getFileChannel();
+		if(!(opStream instanceof FileRegionOutput) || !(this.codec instanceof BinaryMsgCodec) || file == null) {
+			BufferPool pool = BufferPool.getInstance();
+			byte[] data = pool.acquire(blockLen);
+			try{
+				fm.read(blockIdx, data, blockLen);
+				send(opStream, PIECE, blockIdx, data);
+			}
+			finally{
+				pool.release(data);
+			}
+			return;
+		}
+		this.sendLock.lock();
+		try{
+			((BinaryMsgCodec) this.codec).writePieceHeader(opStream, blockIdx, blockLen);
+			((FileRegionOutput) opStream).writeFileRegion(file, fm.getBlockOffset(blockIdx), blockLen);
+			Metrics.onSend(PIECE);
+			TraceRecorder.recordSend(this.isServerSide, this.interConnPeer, PIECE, blockIdx, 5+blockLen);
+		}
+		finally{
+			this.sendLock.unlock();
+		}
 	}
 	/**
 	 * recieve from send
 	 *
-	 * @param      in           inputstream usually object input stream
+	 * @param      in           inputstream opened by openInput()
 	 *
 	 * @return     -1 when error happens, otherwise return the type of incoming msg
 	 *
 	 * @throws     IOException  
 	 */
-	public byte recv(ObjectInputStream ipStream) throws IOException{
-		try{
-			NoPayloadMsg msg = (NoPayloadMsg)ipStream.readObject();
-			byte type = msg.getMsgType();
-			if(type <= NOTINTERESTED){
-				this.noPayloadMsg = msg;
-			}
-			else if(type < PIECE && type != BITFIELD){
-				ShortPayloadMsg shortMsg = (ShortPayloadMsg) msg;
-				this.shortMsg = shortMsg;
-			}
-			else if(type == BITFIELD){
-				BitfieldMsg bitfieldMsg = (BitfieldMsg) msg;
-				this.bitfieldMsg = bitfieldMsg;
-			}
-			else{
-				PieceMsg pieceMsg = (PieceMsg) msg;
-				this.pieceMsg = pieceMsg;
-			}
-			logging.writeLog(
-				String.format("Receive msg from peer [%s], type: [%s]", 
-				this.interConnPeer.getId(),
-				type
-			));
-			return type;
+	public byte recv(InputStream ipStream) throws IOException{
+		NoPayloadMsg msg = this.codec.read(ipStream, this);
+		if(msg == null) return -1;
+		byte type = msg.getMsgType();
+		if(type <= NOTINTERESTED){
+			this.noPayloadMsg = msg;
+		}
+		else if(isShortMsgType(type)){
+			this.shortMsg = (ShortPayloadMsg) msg;
+		}
+		else if(type == BITFIELD){
+			this.bitfieldMsg = (BitfieldMsg) msg;
+		}
+		else{
+			this.pieceMsg = (PieceMsg) msg;
+		}
+		logging.writeLogf("Receive msg from peer [%s], type: [%s]", this.interConnPeer.getId(), type);
+		Metrics.onRecv(type);
+		if(TraceRecorder.isEnabled()) traceRecv(type);
+		return type;
+	}
+
+	private void traceRecv(byte type) {
+		if(isShortMsgType(type)) {
+			TraceRecorder.recordRecv(this.isServerSide, this.interConnPeer, type, this.shortMsg.getBlockIdx(), this.shortMsg.getMsgLen(), null);
+		}
+		else if(type == BITFIELD) {
+			byte[] b = this.bitfieldMsg.getBitfield();
+			TraceRecorder.recordRecv(this.isServerSide, this.interConnPeer, type, -1, 1 + b.length, b);
+		}
+		else if(type == PIECE) {
+			TraceRecorder.recordRecv(this.isServerSide, this.interConnPeer, type, this.pieceMsg.blockIdx, this.pieceMsg.getMsgLen(), null);
+		}
+		else {
+			TraceRecorder.recordRecv(this.isServerSide, this.interConnPeer, type, -1, this.noPayloadMsg.getMsgLen(), null);
+		}
+	}
+
+	/**
+	 * Put a msg in the received msg objects as recv() does, for TraceReplay.
+	 * PIECE data is a BufferPool array, the reaction takes it over.
+	 * @param blockIdx -1 if the msg has none
+	 * @param payload  bitfield or piece data, else null
+	 */
+	void loadReceived(byte type, int blockIdx, byte[] payload, int msgLen) {
+		if(type <= NOTINTERESTED) {
+			this.noPayloadMsg.setData(1, type);
+		}
+		else if(isShortMsgType(type)) {
+			this.shortMsg.setData(5, type, blockIdx);
+		}
+		else if(type == BITFIELD) {
+			this.bitfieldMsg.setData(msgLen, type, payload);
 		}
-		catch(ClassNotFoundException e){
-			logging.writeLog("severe", "read input stream exception, ex:" + e);
+		else {
+			this.pieceMsg.setData(msgLen, type, blockIdx, payload);
 		}
-		return -1;
 	}
 	/**
 	 * Prints a byte array.
@@ -0,0 +1,78 @@
+package peer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Grow-only set of block indexes [0, blockNum), thread-safe without a lock.
+ * Used for the own bitfield: set on every downloaded block, read by every
+ * upload (contains) and every HAVE / BITFIELD / checkpoint (toBitfield).
+ *
+ * - add is a compare-and-set of one 64-bit word, O(1) per block
+ * - the cardinality is counted after the bit is set, size() may lag a
+ *   concurrent add but never counts a block that is not in the set
+ * - toBitfield reads word by word, blocks added meanwhile may or may not be in it
+ */
+class AtomicPieceSet {
+	private final AtomicLongArray words;
+	private final int blockNum;
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	AtomicPieceSet(int blockNum) {
+		this.blockNum = blockNum;
+		this.words = new AtomicLongArray((blockNum + 63) >>> 6);
+	}
+
+	int size() {
+		return this.size.get();
+	}
+
+	boolean isFull() {
+		return this.size.get() == this.blockNum;
+	}
+
+	boolean contains(int blockIdx) {
+		return (this.words.get(blockIdx >>> 6) & (1L << blockIdx)) != 0;
+	}
+
+	/**
+	 * @return true if the block was not in the set
+	 */
+	boolean add(int blockIdx) {
+		int w = blockIdx >>> 6;
+		long bit = 1L << blockIdx;
+		while(true) {
+			long word = this.words.get(w);
+			if((word & bit) != 0) return false;
+			if(this.words.compareAndSet(w, word, word | bit)) {
+				this.size.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Add every block of the set (resumed download, seeder)
+	 */
+	void addAll(PieceSet other) {
+		for(int blockIdx = other.nextSetBit(0); blockIdx != -1; blockIdx = other.nextSetBit(blockIdx + 1)) {
+			add(blockIdx);
+		}
+	}
+
+	/**
+	 * @return bitfield msg payload of the set
+	 */
+	byte[] toBitfield() {
+		byte[] b = new byte[(this.blockNum + 7) >>> 3];
+		for(int w = 0; w < this.words.length(); w++) {
+			long word = this.words.get(w);
+			while(word != 0) {
+				int blockIdx = (w << 6) + Long.numberOfTrailingZeros(word);
+				b[blockIdx >>> 3] |= (byte)(0x80 >>> (blockIdx & 7));
+				word &= word - 1;
+			}
+		}
+		return b;
+	}
+}
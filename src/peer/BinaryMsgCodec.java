@@ -0,0 +1,209 @@
+package peer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary wire format in the project description
+ *
+ * handshake: [18-byte header][10-byte zero bits][4-byte peer ID]
+ * actual msg: [4-byte msg length][1-byte msg type][payload]
+ * 		- msg length counts the type and the payload, not itself
+ * 		- have, request: payload = 4-byte piece index
+ * 		- bitfield: payload = bitfield
+ * 		- piece: payload = 4-byte piece index + the content of the piece
+ * msg type: the project description numbers, choke 0, unchoke 1, interested 2,
+ * not interested 3, have 4, bitfield 5, request 6, piece 7. The extensions of
+ * this project come after them, cancel 8, complete 9. ActualMsg numbers the types
+ * its own way, they are mapped here.
+ *
+ * Integers are big-endian (ByteBuffer default).
+ */
+public class BinaryMsgCodec implements MsgCodec {
+	public static final int HEADER_LEN = 5; // length + type
+	public static final int INDEX_LEN = 4;
+	public static final int HANDSHAKE_LEN = 32;
+	private static final int ZERO_BITS_LEN = 10;
+	private static final int STREAM_BUFFER_SIZE = 8192;
+	// wire type by ActualMsg type (COMPLETE 0 ... CANCEL 9)
+	private static final byte[] WIRE_TYPES = {9, 0, 1, 2, 3, 4, 5, 6, 7, 8};
+	// ActualMsg type by wire type
+	private static final byte[] MSG_TYPES = new byte[WIRE_TYPES.length];
+	static {
+		for(byte type = 0; type < WIRE_TYPES.length; type++) {
+			MSG_TYPES[WIRE_TYPES[type]] = type;
+		}
+	}
+
+	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
+
+	// reused header buffers, write and read are never called concurrently on one codec
+	private final ByteBuffer outHeader = ByteBuffer.allocate(HANDSHAKE_LEN);
+	private final ByteBuffer inHeader = ByteBuffer.allocate(HANDSHAKE_LEN);
+	private final int maxMsgLen;
+
+	BinaryMsgCodec() {
+		this.maxMsgLen = maxMsgLen(sysInfo.getFileSize(), sysInfo.getPieceSize());
+	}
+
+	/**
+	 * Largest legal msg length, anything longer is a broken stream
+	 */
+	public static int maxMsgLen(long fileSize, int pieceSize) {
+		int blockNum = (int)(fileSize/pieceSize) + ((fileSize % pieceSize > 0)?1:0);
+		int bitfieldLen = blockNum/8 + ((blockNum % 8 > 0)?1:0);
+		return 1 + INDEX_LEN + Math.max(pieceSize, bitfieldLen);
+	}
+
+	public OutputStream openOutput(OutputStream out) {
+		return new BufferedOutputStream(out, STREAM_BUFFER_SIZE);
+	}
+
+	/**
+	 * Sockets from a channel (server side) get a ChannelOutputStream,
+	 * pieces are then sent by FileChannel.transferTo when ZeroCopyUpload is on
+	 */
+	public OutputStream openOutput(Socket socket) throws IOException {
+		if(socket.getChannel() != null && sysInfo.getZeroCopyUpload()) {
+			return new ChannelOutputStream(socket, STREAM_BUFFER_SIZE);
+		}
+		return openOutput(socket.getOutputStream());
+	}
+
+	public InputStream openInput(InputStream in) {
+		return new BufferedInputStream(in, STREAM_BUFFER_SIZE);
+	}
+
+	/**
+	 * Write the header of a piece msg without its data and without flushing,
+	 * the caller sends dataLen bytes of block data right after it
+	 */
+	public void writePieceHeader(OutputStream out, int blockIdx, int dataLen) throws IOException {
+		this.outHeader.clear();
+		this.outHeader.putInt(1 + INDEX_LEN + dataLen);
+		this.outHeader.put(toWireType(ActualMsg.PIECE));
+		this.outHeader.putInt(blockIdx);
+		out.write(this.outHeader.array(), 0, this.outHeader.position());
+	}
+
+	public void write(OutputStream out, NoPayloadMsg msg) throws IOException {
+		byte[] payload = null;
+		this.outHeader.clear();
+		this.outHeader.putInt(msg.getMsgLen());
+		this.outHeader.put(toWireType(msg.getMsgType()));
+		if(msg instanceof PieceMsg) {
+			this.outHeader.putInt(((PieceMsg) msg).getBlockIdx());
+			payload = ((PieceMsg) msg).getData();
+		}
+		else if(msg instanceof ShortPayloadMsg) {
+			this.outHeader.putInt(((ShortPayloadMsg) msg).getBlockIdx());
+		}
+		else if(msg instanceof BitfieldMsg) {
+			payload = ((BitfieldMsg) msg).getBitfield();
+		}
+		int headerLen = this.outHeader.position();
+		out.write(this.outHeader.array(), 0, headerLen);
+		if(payload != null) {
+			// msg length does not count the 4-byte length field
+			out.write(payload, 0, msg.getMsgLen() + 4 - headerLen);
+		}
+		out.flush();
+	}
+
+	public NoPayloadMsg read(InputStream in, ActualMsg holder) throws IOException {
+		readFully(in, this.inHeader.array(), 0, HEADER_LEN);
+		int msgLen = this.inHeader.getInt(0);
+		byte wireType = this.inHeader.get(4);
+		if(msgLen < 1 || msgLen > this.maxMsgLen) {
+			throw new IOException("BinaryMsgCodec read: invalid msg length " + msgLen + ", type " + wireType);
+		}
+		if(wireType < 0 || wireType >= MSG_TYPES.length) {
+			throw new IOException("BinaryMsgCodec read: unknown msg type " + wireType);
+		}
+		byte type = MSG_TYPES[wireType];
+
+		if(type <= ActualMsg.NOTINTERESTED && type >= 0) {
+			checkLen(msgLen, 1, type);
+			holder.noPayloadMsg.setData(msgLen, type);
+			return holder.noPayloadMsg;
+		}
+		if(type == ActualMsg.BITFIELD) {
+			byte[] bitfield = new byte[msgLen - 1];
+			readFully(in, bitfield, 0, bitfield.length);
+			holder.bitfieldMsg.setData(msgLen, type, bitfield);
+			return holder.bitfieldMsg;
+		}
+		if(type == ActualMsg.PIECE) {
+			if(msgLen < 1 + INDEX_LEN) {
+				throw new IOException("BinaryMsgCodec read: piece msg too short, length " + msgLen);
+			}
+			int blockIdx = readInt(in);
+			// released by the receiver once the piece is written
+			byte[] data = BufferPool.getInstance().acquire(msgLen - 1 - INDEX_LEN);
+			readFully(in, data, 0, data.length);
+			holder.pieceMsg.setData(msgLen, type, blockIdx, data);
+			return holder.pieceMsg;
+		}
+		if(ActualMsg.isShortMsgType(type)) {
+			checkLen(msgLen, 1 + INDEX_LEN, type);
+			holder.shortMsg.setData(msgLen, type, readInt(in));
+			return holder.shortMsg;
+		}
+		throw new IOException("BinaryMsgCodec read: unknown msg type " + type);
+	}
+
+	public void writeHandShake(OutputStream out, HandShake handShake) throws IOException {
+		this.outHeader.clear();
+		this.outHeader.put(HandShake.getHeader().getBytes(StandardCharsets.US_ASCII));
+		this.outHeader.put(new byte[ZERO_BITS_LEN]);
+		this.outHeader.putInt(Integer.parseInt(handShake.getPeerID()));
+		out.write(this.outHeader.array(), 0, HANDSHAKE_LEN);
+		out.flush();
+	}
+
+	public HandShake readHandShake(InputStream in) throws IOException {
+		readFully(in, this.inHeader.array(), 0, HANDSHAKE_LEN);
+		int headerLen = HANDSHAKE_LEN - ZERO_BITS_LEN - 4;
+		String header = new String(this.inHeader.array(), 0, headerLen, StandardCharsets.US_ASCII);
+		int peerId = this.inHeader.getInt(HANDSHAKE_LEN - 4);
+		return new HandShake(header, String.valueOf(peerId));
+	}
+
+	/**
+	 * @return the msg type on the wire of the ActualMsg type
+	 */
+	static byte toWireType(byte type) {
+		return WIRE_TYPES[type];
+	}
+
+	private int readInt(InputStream in) throws IOException {
+		readFully(in, this.inHeader.array(), 0, INDEX_LEN);
+		return this.inHeader.getInt(0);
+	}
+
+	private static void checkLen(int msgLen, int expected, byte type) throws IOException {
+		if(msgLen != expected) {
+			throw new IOException("BinaryMsgCodec read: type " + type + " expects length " + expected + ", get " + msgLen);
+		}
+	}
+
+	/**
+	 * Block until len bytes are read
+	 * @throws EOFException when the other side closed the connection
+	 */
+	public static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			int n = in.read(b, off, len);
+			if(n < 0) throw new EOFException("BinaryMsgCodec read: connection closed");
+			off += n;
+			len -= n;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package peer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of piece sized byte arrays, shared by the PIECE receive path
+ * (BinaryMsgCodec.read -> Client -> FileManager.writeBehind -> DiskWriter) and the copying send path
+ * (FileManager.read -> ActualMsg.sendFileBlock).
+ *
+ * Capacity covers the in-flight window of every neighbor, (RequestPipelineDepth + 1) buffers each,
+ * and the pieces queued on the disk writer (WriteQueueSize).
+ * acquire() of a size other than PieceSize (the last block) is not pooled.
+ * When the pool is empty a new array is allocated (miss), release() drops it when the pool is full.
+ * Heap arrays, the msg streams and FileManager work on byte[].
+ */
+public class BufferPool {
+	private static BufferPool instance = null;
+	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
+
+	public final int bufferSize;
+	public final int capacity;
+	private final ArrayBlockingQueue<byte[]> free;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+		this.free = new ArrayBlockingQueue<byte[]>(capacity);
+	}
+
+	public static synchronized BufferPool getInstance() {
+		if(BufferPool.instance == null) {
+			int capacity = Math.max(4, sysInfo.getNeighborMap().size() * (sysInfo.getRequestPipelineDepth() + 1))
+				+ sysInfo.getWriteQueueSize();
+			BufferPool.instance = new BufferPool(sysInfo.getPieceSize(), capacity);
+		}
+		return BufferPool.instance;
+	}
+
+	/**
+	 * Get an array of len bytes, pooled when len is the piece size
+	 */
+	public byte[] acquire(int len) {
+		if(len != this.bufferSize) return new byte[len];
+		byte[] b = this.free.poll();
+		if(b != null) {
+			this.hits.incrementAndGet();
+			return b;
+		}
+		this.misses.incrementAndGet();
+		return new byte[len];
+	}
+
+	/**
+	 * Give the array back, the caller must not use it afterwards
+	 */
+	public void release(byte[] b) {
+		if(b == null || b.length != this.bufferSize) return;
+		this.free.offer(b);
+	}
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	public int getFreeCount() {
+		return this.free.size();
+	}
+}
@@ -0,0 +1,33 @@
+package peer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Buffered output of a blocking socket opened from a channel (Server.Handler),
+ * file regions are transferred to the socket channel with zero copy.
+ */
+class ChannelOutputStream extends BufferedOutputStream implements FileRegionOutput {
+	private final SocketChannel channel;
+
+	ChannelOutputStream(Socket socket, int size) throws IOException {
+		super(socket.getOutputStream(), size);
+		this.channel = socket.getChannel();
+	}
+
+	public void writeFileRegion(FileChannel file, long position, int len) throws IOException {
+		// the msg header is still in the buffer
+		flush();
+		long end = position + len;
+		while(position < end) {
+			long n = file.transferTo(position, end - position, this.channel);
+			if(n <= 0) {
+				throw new IOException("ChannelOutputStream transfer failed at position " + position + ", file too short");
+			}
+			position += n;
+		}
+	}
+}
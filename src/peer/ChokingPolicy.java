@@ -0,0 +1,37 @@
+package peer;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Picks the preferred neighbors every UnchokingInterval, the other interested
+ * neighbors are choked (except the optimistically unchoked one).
+ *
+ * - titfortat: leechers reciprocate by download rate, seeders rank by the upload
+ *   rate achieved to each peer, peers which stopped sending are snubbed
+ * - legacy: by download rate while leeching, random once the file is complete
+ *
+ * Select it with "ChokingPolicy" in Common.cfg.
+ * Called only by the PreferSelect timer thread.
+ */
+public interface ChokingPolicy {
+
+	/**
+	 * Create a policy by the system param
+	 * @return policy for the PreferSelect timer
+	 */
+	public static ChokingPolicy create() {
+		if("legacy".equals(SystemInfo.getSingletonObj().getChokingPolicy())) {
+			return new LegacyChoking();
+		}
+		return new TitForTatChoking();
+	}
+
+	/**
+	 * @param candidates interested neighbors, the list may be reordered
+	 * @param preferN    NumberOfPreferredNeighbors
+	 * @param isSeeding  true if the host peer has the complete file
+	 * @return ids of at most preferN peers to unchoke
+	 */
+	public Set<String> selectPreferred(List<Peer> candidates, int preferN, boolean isSeeding);
+}
@@ -2,7 +2,14 @@ package peer;
 
 import java.net.*;
 import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import utils.CustomExceptions;
 import utils.ErrorCode;
 import utils.LogHandler;
@@ -20,14 +27,30 @@ public class Client extends Peer implements Runnable {
 	private static FileManager fm = FileManager.getInstance();
 	private HandShake handShake;
 	private ActualMsg actMsg;
-	private ObjectOutputStream opStream = null;
-	private ObjectInputStream inStream = null;
+	private OutputStream opStream = null;
+	private InputStream inStream = null;
 	private boolean isClientComplete = false;
 	/**
-	 * Use to count download rate
+	 * Pipelined requests on this connection
+	 * - outstanding: requested blocks not received yet with the nanoTime of the REQUEST,
+	 *   at most RequestPipelineDepth
+	 * - isChoked: choked by the target host, every connection has its own state
+	 * - pipelineLock: other connections cancel endgame requests, every send on opStream holds it
+	 * - isRequestPending: a block of this connection was corrupted, this thread refills
+	 *   the pipeline after the next msg, the verifying thread never sends
 	 */
-	private double downloadRate = 0; // MegabytesPerSec
-	private long startReadTime = 0;
+	private final LinkedHashMap<Integer, Long> outstanding = new LinkedHashMap<Integer, Long>();
+	private volatile boolean isChoked = true;
+	private final AtomicBoolean isRequestPending = new AtomicBoolean(false);
+	private final ReentrantLock pipelineLock = new ReentrantLock();
+	private final FileManager.VerifyCallback verifyCallback = new BlockVerified();
+	// only the first verified last block starts broadcastComplete
+	private static final AtomicBoolean isCompleteBroadcast = new AtomicBoolean(false);
+	// every client by target peer id, endgame cancels the requests of other connections
+	private static final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+	private static final AtomicLong cancelCount = new AtomicLong();
+	// outstanding requests of all connections, for Metrics
+	private static final AtomicInteger outstandingCount = new AtomicInteger();
 
 	/**
 	 * Create connection to target host: targetPort.
@@ -41,6 +64,7 @@ public class Client extends Peer implements Runnable {
 		this.tryToConnect = true;
 		this.handShake = null;
 		this.actMsg = new ActualMsg(this.targetHostPeer);
+		clients.put(this.targetHostPeer.getId(), this);
 		logging.writeLog("Create Client thread, target peer - " + this.targetHostPeer.getId());
 	}
 
@@ -53,11 +77,11 @@ public class Client extends Peer implements Runnable {
 					this.requestSocket = new Socket(targetHostPeer.getHostName(), targetHostPeer.getPort());
 					sysInfo.getClientConnMap().put(targetHostPeer.getId(), this.requestSocket);
 					
-					this.opStream = new ObjectOutputStream(requestSocket.getOutputStream());
+					this.opStream = this.actMsg.openOutput(requestSocket.getOutputStream());
 					sysInfo.getClientOpStream().put(targetHostPeer.getId(), this.opStream);
 					
 					sysInfo.getClientActMsgMap().put(targetHostPeer.getId(), this.actMsg);
-					this.inStream = new ObjectInputStream(requestSocket.getInputStream());
+					this.inStream = this.actMsg.openInput(requestSocket.getInputStream());
 				}
 			
 				if(sysInfo.getClientConnMap().get(targetHostPeer.getId()) == null) {
@@ -93,6 +117,7 @@ public class Client extends Peer implements Runnable {
 						
 						if(this.handShake.isSuccess()) {
 							logging.logHandShakeSuccess(this.clientPeer, this.targetHostPeer);
+							TraceRecorder.recordHandshake(false, this.targetHostPeer);
 							break;
 						}
 
@@ -104,12 +129,23 @@ public class Client extends Peer implements Runnable {
 				byte msg_type = -1;
 				while(!isClientComplete){
 					// Receive msg from server
-					startReadTime = System.nanoTime();
 					msg_type = actMsg.recv(inStream);
-					if(msg_type != -1) {
+					if(msg_type == ActualMsg.PIECE) {
+						// the piece data is a BufferPool array, give it back if the reaction didn't take it
+						try {
+							reactions(msg_type);
+						}
+						finally {
+							BufferPool.getInstance().release(actMsg.pieceMsg.getData());
+						}
+					}
+					else if(msg_type != -1) {
 						reactions(msg_type);
 					}
 					if(isClientComplete) break;
+					if(this.isRequestPending.getAndSet(false) && !this.isChoked) {
+						requestingPiece(this.targetHostPeer);
+					}
 				}
 			}
 			catch (ConnectException e) {
@@ -160,6 +196,7 @@ public class Client extends Peer implements Runnable {
 				removeCommunicateObjects();
 			}
 		}
+		if(fm != null) fm.removePeer(targetHostPeer.getId());
 		removeCommunicateObjects();
 		return;
 	}
@@ -169,6 +206,10 @@ public class Client extends Peer implements Runnable {
 	 */
 	private void recreate_connection() {
 		logging.writeLog("warning", "RECONNECTING Peer [" + targetHostPeer.getId() + "]" );
+		releaseOutstanding();
+		// the peer sends its BITFIELD again on the new connection
+		if(fm != null) fm.removePeer(targetHostPeer.getId());
+		this.isChoked = true;
 		Tools.timeSleep(sysInfo.getRetryInterval());
 		tryToConnect = true;
 		this.requestSocket = null;
@@ -243,20 +284,17 @@ public class Client extends Peer implements Runnable {
 
 			// send interest or not
 			if(fm.isInterested(this.targetHostPeer.getId())) {
-				actMsg.send(opStream, ActualMsg.INTERESTED, 0);
+				sendLocked(ActualMsg.INTERESTED);
 			}
 			else {
-				actMsg.send(opStream, ActualMsg.NOTINTERESTED, 0);
+				sendLocked(ActualMsg.NOTINTERESTED);
 			}
 		}
 		else if(msg_type == ActualMsg.HAVE) {
 			logging.logReceiveHaveMsg(this.targetHostPeer);
 
 			int blockIdx = this.actMsg.shortMsg.getBlockIdx();
-			logging.writeLog(String.format("%s send have to notify obtaining new block: %s", 
-				this.targetHostPeer.getId(),
-				blockIdx
-			));
+			logging.writeLogf("%s send have to notify obtaining new block: %s", this.targetHostPeer.getId(), blockIdx);
 			fm.updateHave(this.targetHostPeer.getId(), blockIdx);
 
 			/**
@@ -269,17 +307,21 @@ public class Client extends Peer implements Runnable {
 			}
 
 			if(fm.isInterested(this.targetHostPeer.getId())) {
-				actMsg.send(opStream, ActualMsg.INTERESTED, 0);
+				sendLocked(ActualMsg.INTERESTED);
+				// still unchoked, the new block may refill the pipeline
+				if(!this.isChoked) {
+					requestingPiece(this.targetHostPeer);
+				}
 			}
 			else {
-				actMsg.send(opStream, ActualMsg.NOTINTERESTED, 0);
+				sendLocked(ActualMsg.NOTINTERESTED);
 			}
 		}
 		else if(msg_type == ActualMsg.CHOKE) {
 			logging.logChoking(this.targetHostPeer);
-			if(!clientPeer.getIsChoking()) {
-				clientPeer.setChoking();
-			}
+			this.isChoked = true;
+			// server drops requests from choked peers, let other connections pick them
+			releaseOutstanding();
 		}
 		else if(msg_type == ActualMsg.UNCHOKE) {
 			logging.logUnchoking(this.targetHostPeer);
@@ -290,48 +332,40 @@ public class Client extends Peer implements Runnable {
 			 * 		=> continue sending pieces message 
 			 */
 
-			if(clientPeer.getIsChoking()) {
-				clientPeer.setUnChoking();
-			}
+			this.isChoked = false;
 			requestingPiece(this.targetHostPeer);
 		}
 		else if(msg_type == ActualMsg.PIECE) {
 			/**
-			 * 1. Set download rate
+			 * 1. Count downloaded bytes
 			 * 2. write block into file
 			 * 3. add block to new obtain blocks list
 			 * 
 			 * 4. check if complete 
 			 * 		-> YES then start closing procsess
 			 * 		-> NO, continue
-			 * 5. if not choked -> continue requesting another piece
+			 * 5. if not choked -> refill the request pipeline
 			 */
 
 			logging.logReceivePieceMsg(this.targetHostPeer);
-			double spendSec = (double)(System.nanoTime() - this.startReadTime) / 1_000_000_000.0;
-			// MegabytesPerSec
-			this.downloadRate = (this.actMsg.pieceMsg.getMsgLen() / spendSec) / 1_000_000.0;
-			setDownloadRate();
+			this.targetHostPeer.getDownloadMeter().add(this.actMsg.pieceMsg.getMsgLen());
 
 			int blockIdx = this.actMsg.pieceMsg.blockIdx;
+			removeOutstanding(blockIdx);
 			int blockLen = fm.getBlockSize(blockIdx);
-			int isError = fm.write(blockIdx, this.actMsg.pieceMsg.getData(), blockLen);
+			// the disk writer owns the data now, bitfield, have and complete follow the write and hash check, see BlockVerified
+			int isError = fm.writeBehind(blockIdx, this.actMsg.pieceMsg.takeData(), blockLen, this.verifyCallback);
 			if(isError == -1) {
-				logging.writeLog("unable write block " + blockIdx + " from " + this.targetHostPeer.getId());
+				logging.writeLogf("unable write block %s from %s", blockIdx, this.targetHostPeer.getId());
 				return false;
 			}
-			logging.logDownload(this.targetHostPeer, blockIdx, fm.getOwnBitfieldSize());
-
-			sysInfo.addNewObtainBlocks(blockIdx);
-			
-			if(isDownloadComplete()) {
-				logging.logCompleteFile();
-				broadcastComplete t = new broadcastComplete();
-				t.start();
-				return true;
+			// endgame, the block is requested from other peers too
+			for(String peerId : fm.finishRequest(blockIdx, this.targetHostPeer.getId())) {
+				Client other = clients.get(peerId);
+				if(other != null) other.cancelRequest(blockIdx);
 			}
 
-			if(clientPeer.getIsChoking()) {
+			if(this.isChoked) {
 				logging.writeLog("unable continue requesting, peer has been choked");
 				return false;
 			}
@@ -340,26 +374,132 @@ public class Client extends Peer implements Runnable {
 		return false;
 	}
 	
-	private void setDownloadRate() {
-		Peer p = sysInfo.getNeighborMap().get(targetHostPeer.getId());
-		p.setDownloadRate(this.downloadRate);
-		this.downloadRate = 0;
-	}
 	/**
-	 * 1. request piece
+	 * 1. request pieces until RequestPipelineDepth requests are outstanding
 	 * @param sender
-	 * @param outConn
-	 * @return
+	 * @return -1 when nothing is outstanding
 	 * @throws IOException
 	 */
 	private int requestingPiece(Peer sender) throws IOException {
-		int requestBlockIdx = fm.pickInterestedFileBlock(sender.getId());
-		if(requestBlockIdx == -1) {
-			logging.writeLog("requestingPiece stop, no interested block"); 
-			return -1;
-		} 
-		this.actMsg.send(opStream, ActualMsg.REQUEST, requestBlockIdx);
-		return 0;
+		this.pipelineLock.lock();
+		try {
+			int free = sysInfo.getRequestPipelineDepth() - this.outstanding.size();
+			if(free > 0) {
+				List<Integer> picked = fm.pickInterestedFileBlocks(sender.getId(), free, this.outstanding.keySet());
+				for(int requestBlockIdx : picked) {
+					this.outstanding.put(requestBlockIdx, System.nanoTime());
+					outstandingCount.incrementAndGet();
+					this.actMsg.send(opStream, ActualMsg.REQUEST, requestBlockIdx);
+				}
+			}
+			if(this.outstanding.isEmpty()) {
+				logging.writeLog("requestingPiece stop, no interested block"); 
+				return -1;
+			} 
+			return 0;
+		}
+		finally {
+			this.pipelineLock.unlock();
+		}
+	}
+
+	private void removeOutstanding(int blockIdx) {
+		this.pipelineLock.lock();
+		try {
+			Long requestedAt = this.outstanding.remove(blockIdx);
+			if(requestedAt != null) {
+				outstandingCount.decrementAndGet();
+				Metrics.requestLatency.record(System.nanoTime() - requestedAt);
+			}
+		}
+		finally {
+			this.pipelineLock.unlock();
+		}
+	}
+
+	/**
+	 * Give the outstanding requests back to file manager
+	 */
+	private void releaseOutstanding() {
+		this.pipelineLock.lock();
+		try {
+			if(fm != null && !this.outstanding.isEmpty()) {
+				fm.releaseBlocks(this.targetHostPeer.getId(), this.outstanding.keySet());
+			}
+			outstandingCount.addAndGet(-this.outstanding.size());
+			this.outstanding.clear();
+		}
+		finally {
+			this.pipelineLock.unlock();
+		}
+	}
+
+	private void sendLocked(byte msgType) throws IOException {
+		this.pipelineLock.lock();
+		try {
+			this.actMsg.send(this.opStream, msgType, 0);
+		}
+		finally {
+			this.pipelineLock.unlock();
+		}
+	}
+
+	/**
+	 * Endgame, the block arrived on another connection: send CANCEL for
+	 * its request here and use the free slot for another block
+	 * @param blockIdx
+	 */
+	private void cancelRequest(int blockIdx) {
+		this.pipelineLock.lock();
+		try {
+			if(this.outstanding.remove(blockIdx) == null) return;
+			outstandingCount.decrementAndGet();
+			if(this.opStream == null) return;
+			this.actMsg.send(this.opStream, ActualMsg.CANCEL, blockIdx);
+			cancelCount.incrementAndGet();
+			logging.writeLogf("(client) cancel request of block %s to %s", blockIdx, this.targetHostPeer.getId());
+			if(!this.isChoked) requestingPiece(this.targetHostPeer);
+		}
+		catch(IOException e) {
+			String trace = Tools.getStackTrace(e);
+			logging.writeLog("warning", "(client) cancel block " + blockIdx + " failed, ex:" + trace);
+		}
+		finally {
+			this.pipelineLock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of CANCEL msgs sent
+	 */
+	public static long getCancelCount() {
+		return cancelCount.get();
+	}
+
+	/**
+	 * @return requests sent and not answered yet, all connections
+	 */
+	public static int getOutstandingCount() {
+		return outstandingCount.get();
+	}
+
+	/**
+	 * Hash check result of the blocks received on this connection, runs on a PieceHasher
+	 * thread, the disk writer or this connection's thread, whichever finishes the block last
+	 * - verified: log, queue HAVE, start broadcastComplete after the last block
+	 * - corrupted: the block is interested again, the connection's thread requests it if still unchoked
+	 */
+	private class BlockVerified implements FileManager.VerifyCallback {
+		public void onBlockVerified(int blockIdx) {
+			logging.logDownload(targetHostPeer, blockIdx, fm.getOwnBitfieldSize());
+			sysInfo.addNewObtainBlocks(blockIdx);
+			broadcastIfComplete();
+		}
+
+		public void onBlockCorrupted(int blockIdx) {
+			// the connection may be reconnecting, its thread requests again
+			isRequestPending.set(true);
+		}
 	}
 	
 	public void closeAllClientThread() throws IOException {
@@ -377,12 +517,41 @@ public class Client extends Peer implements Runnable {
 		sysInfo.getClientConnMap().clear();
 	}
 
+	/**
+	 * Connection without socket for TraceReplay, the msgs sent go to out
+	 */
+	void attachReplay(OutputStream out) throws IOException {
+		this.opStream = this.actMsg.openOutput(out);
+	}
+
+	/**
+	 * React to a msg as if recv() read it, for TraceReplay
+	 * @param blockIdx -1 if the msg has none
+	 * @param payload  bitfield, or BufferPool array of the piece data
+	 * @return true -> isEnd
+	 */
+	boolean replay(byte msgType, int blockIdx, byte[] payload, int msgLen) throws IOException {
+		this.actMsg.loadReceived(msgType, blockIdx, payload, msgLen);
+		return reactions(msgType);
+	}
+
 	private boolean isDownloadComplete(){
 		if(fm != null && fm.isComplete()) return true;
 		return false;
 	}
 
-	private static class broadcastComplete extends Thread {
+	/**
+	 * Start broadcastComplete once the download is complete, also used by
+	 * a resumed download which is already complete at start up
+	 */
+	public static void broadcastIfComplete() {
+		if(fm != null && fm.isComplete() && isCompleteBroadcast.compareAndSet(false, true)) {
+			logging.logCompleteFile();
+			ConnExecutor.execute(new broadcastComplete());
+		}
+	}
+
+	private static class broadcastComplete implements Runnable {
 		public void run() {
 			logging.writeLog("start broadcastComplete");
 			while(true) {
@@ -406,7 +575,7 @@ public class Client extends Peer implements Runnable {
 
 		private void sendCompleteMessageToAll(){
 			logging.writeLog("send COMPLETE msg to # " + sysInfo.getClientOpStream().size() + " servers");
-			for(Entry<String, ObjectOutputStream> conn: sysInfo.getClientOpStream().entrySet()) {
+			for(Entry<String, OutputStream> conn: sysInfo.getClientOpStream().entrySet()) {
 				String peerID = conn.getKey();
 				logging.logSendCompleteMsg(peerID);
 				try {
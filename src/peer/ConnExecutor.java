@@ -0,0 +1,68 @@
+package peer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import utils.LogHandler;
+import utils.Tools;
+
+/**
+ * Runs the per-connection work (Client, Server.Handler, broadcastComplete)
+ *
+ * - platform: a new platform thread per task, the original model
+ * - virtual: a virtual thread per task, the blocking code stays the same
+ *   but one peer can hold thousands of connections. Needs java 21+,
+ *   falls back to platform threads on older runtimes.
+ *
+ * Select it by "ThreadMode" in Common.cfg.
+ */
+public final class ConnExecutor {
+	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
+	private static LogHandler logging = new LogHandler();
+	private static final ExecutorService virtualExecutor = createVirtualExecutor();
+
+	private ConnExecutor() {}
+
+	/**
+	 * Run the task on a new (platform or virtual) thread
+	 * @param task
+	 */
+	public static void execute(Runnable task) {
+		if(virtualExecutor != null) {
+			virtualExecutor.execute(task);
+		}
+		else {
+			new Thread(task).start();
+		}
+	}
+
+	/**
+	 * @return true if the tasks run on virtual threads
+	 */
+	public static boolean isVirtual() {
+		return virtualExecutor != null;
+	}
+
+	/**
+	 * Number of platform threads carrying virtual threads
+	 */
+	public static int getCarrierThreadCount() {
+		int count = 0;
+		for(Thread t: Thread.getAllStackTraces().keySet()) {
+			if(t.getClass().getName().equals("jdk.internal.misc.CarrierThread")) count++;
+		}
+		return count;
+	}
+
+	private static ExecutorService createVirtualExecutor() {
+		if(!"virtual".equals(sysInfo.getThreadMode())) return null;
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException e) {
+			String trace = Tools.getStackTrace(e);
+			logging.writeLog("warning", "ConnExecutor virtual threads need java 21+, use platform threads, ex:" + trace);
+		}
+		return null;
+	}
+}
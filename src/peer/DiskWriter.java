@@ -0,0 +1,154 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.LogHandler;
+import utils.Tools;
+
+/**
+ * Write-behind of received pieces on one dedicated thread, so a slow disk
+ * doesn't stall the socket reading Client threads.
+ *
+ * - submit() queues a piece, it blocks while the queue ("WriteQueueSize" in
+ *   Common.cfg) is full, the backpressure reaches the socket reader
+ * - the thread drains the queue, sorts the pieces and writes every run of
+ *   adjacent blocks with one gathering write
+ * - after the write FileManager continues with the hash check and bitfield, so
+ *   the bitfield and HAVE never announce a block which is not in the file
+ *
+ * The piece arrays are BufferPool arrays, FileManager.ReceivedBlock releases them
+ * after the write and the hash.
+ * Daemon thread, queued pieces of a killed peer are rechecked on resume.
+ */
+class DiskWriter implements Runnable {
+	private static final int MAX_BATCH = 64;
+
+	static final class Job {
+		final int blockIdx;
+		final byte[] data;
+		final int len;
+		final FileManager.ReceivedBlock received;
+
+		Job(FileManager.ReceivedBlock received) {
+			this.blockIdx = received.blockIdx;
+			this.data = received.data;
+			this.len = received.len;
+			this.received = received;
+		}
+	}
+
+	private static LogHandler logging = new LogHandler();
+
+	private final FileManager fm;
+	private final ArrayBlockingQueue<Job> queue;
+	private final AtomicLong pieces = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+
+	DiskWriter(FileManager fm, int capacity) {
+		this.fm = fm;
+		this.queue = new ArrayBlockingQueue<Job>(capacity);
+		Thread t = new Thread(this, "disk-writer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Queue the piece, waits while the queue is full
+	 */
+	void submit(Job job) throws InterruptedException {
+		if(this.queue.offer(job)) return;
+		this.stalls.incrementAndGet();
+		this.queue.put(job);
+	}
+
+	public void run() {
+		ArrayList<Job> batch = new ArrayList<Job>(MAX_BATCH);
+		while(true) {
+			try {
+				batch.add(this.queue.take());
+			}
+			catch(InterruptedException e) {
+				return;
+			}
+			this.queue.drainTo(batch, MAX_BATCH - 1);
+			batch.sort(Comparator.comparingInt(job -> job.blockIdx));
+			int start = 0;
+			for(int i = 1; i <= batch.size(); i++) {
+				if(i == batch.size() || batch.get(i).blockIdx != batch.get(i - 1).blockIdx + 1) {
+					writeRun(batch.subList(start, i));
+					start = i;
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Write blocks with consecutive indexes, they are adjacent in the file
+	 */
+	private void writeRun(List<Job> run) {
+		ByteBuffer[] srcs = new ByteBuffer[run.size()];
+		for(int i = 0; i < srcs.length; i++) {
+			srcs[i] = ByteBuffer.wrap(run.get(i).data, 0, run.get(i).len);
+		}
+		boolean isWritten = false;
+		long start = System.nanoTime();
+		try {
+			this.fm.writeRun(run.get(0).blockIdx, srcs);
+			Metrics.diskWrite.record(System.nanoTime() - start);
+			isWritten = true;
+			this.writes.incrementAndGet();
+			this.pieces.addAndGet(run.size());
+		}
+		catch(IOException | RuntimeException e) {
+			logging.writeLog("severe", String.format(
+				"DiskWriter write of blocks %s-%s failed, ex:%s", run.get(0).blockIdx, run.get(run.size() - 1).blockIdx, e
+			));
+		}
+		for(Job job : run) {
+			// the callbacks of a connection must not kill the writer, every Client waits on its queue
+			try {
+				job.received.onWritten(isWritten);
+			}
+			catch(RuntimeException e) {
+				String trace = Tools.getStackTrace(e);
+				logging.writeLog("severe", "DiskWriter block " + job.blockIdx + " callback failed, ex:" + trace);
+			}
+		}
+	}
+
+	/**
+	 * @return pieces waiting in the queue
+	 */
+	int getQueueDepth() {
+		return this.queue.size();
+	}
+
+	/**
+	 * @return pieces written
+	 */
+	long getPieceCount() {
+		return this.pieces.get();
+	}
+
+	/**
+	 * @return write calls, pieces / writes is the coalescing factor
+	 */
+	long getWriteCount() {
+		return this.writes.get();
+	}
+
+	/**
+	 * @return submits which waited for a full queue
+	 */
+	long getStallCount() {
+		return this.stalls.get();
+	}
+}
@@ -6,24 +6,56 @@ import utils.ErrorCode;
 import utils.LogHandler;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashSet;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 public class FileManager {
 	public final String fileName;
-	public final int fileLength;
+	public final long fileLength;
 	public final int blockSize;
 	public final int blockNum;
 	public final int lastBlockSize;
 	public final String mode;
-	private final ReentrantLock lock = new ReentrantLock();
-	private RandomAccessFile file;
-	private final HashSet<Integer> interested = new HashSet<Integer>();
-	private final HashSet<Integer> downloading = new HashSet<Integer>();
-	private final HashMap<String, HashSet<Integer>> otherPeerHave = new HashMap<String, HashSet<Integer>>();
-	private byte[] ownBitfield;
+	// interested / downloading sets, a lock instead of synchronized so virtual threads won't pin
+	private final ReentrantLock stateLock = new ReentrantLock();
+	private StorageBackend file;
+	// not requested yet, bucketed by availability for rarest-first picking
+	private final PiecePicker interested;
+	private final PieceSet downloading;
+	// received, queued on the disk writer
+	private final PieceSet writing;
+	// written, waiting for the hash check before the own bitfield is set
+	private final PieceSet verifying;
+	// null when WriteQueueSize is 0, pieces are written by the receiving thread
+	private DiskWriter diskWriter = null;
+	// loaded once, a leecher without a matching hash file doesn't verify the blocks
+	private final ReentrantLock hashesLock = new ReentrantLock();
+	private volatile PieceHashes hashes = null;
+	private volatile boolean isHashesLoaded = false;
+	private File hashFile = null;
+	// resumed download, blocks to recheck against the piece hashes
+	private final File stateFile;
+	private final ArrayList<Integer> uncertain = new ArrayList<Integer>();
+	private final HashMap<String, PieceSet> otherPeerHave = new HashMap<String, PieceSet>();
+	// peers each downloading block is requested from, more than one in endgame
+	private final HashMap<Integer, HashSet<String>> requestedFrom = new HashMap<Integer, HashSet<String>>();
+	// piece bytes received for blocks already written (endgame duplicates)
+	private final AtomicLong duplicateBytes = new AtomicLong();
+	// set word by word (compare-and-set) on every downloaded block so readers need no lock
+	private final AtomicPieceSet ownBitfield;
+	private final Random rd = new Random();
+	// first pieces are picked at random, then rarest first
+	private final int randomFirstPieces = sysInfo.getRandomFirstPieces();
 
 	public static byte[] bitFlag = {
 		(byte)0b10000000,
@@ -36,6 +68,17 @@ public class FileManager {
 		(byte)0b00000001
 	};
 
+	/**
+	 * Result of the hash check of a written block, called on the thread finishing
+	 * the block last: a PieceHasher thread, the disk writer, or the caller of write
+	 * when WriteQueueSize is 0. onBlockCorrupted is also called when the write fails,
+	 * either way the block is interested again. Don't send on a socket from it.
+	 */
+	public interface VerifyCallback {
+		void onBlockVerified(int blockIdx);
+		void onBlockCorrupted(int blockIdx);
+	}
+
 	private static FileManager instance = null;
 	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
 	private static LogHandler logging = new LogHandler();
@@ -49,71 +92,82 @@ public class FileManager {
 	 * @param      fileLength  The file length
 	 * @param      blockSize   The block size
 	 */
-	private FileManager(String fileName, String mode, int fileLength, int blockSize){
+	private FileManager(String fileName, String mode, long fileLength, int blockSize){
 		// setup basic file info
 		this.mode = mode;
 		this.fileName = fileName;
 		this.fileLength = fileLength;
 		this.blockSize = blockSize;
-		int remainder = fileLength % blockSize;
-		this.blockNum = fileLength/blockSize + ((remainder > 0)?1:0);
+		int remainder = (int)(fileLength % blockSize);
+		this.blockNum = (int)(fileLength/blockSize) + ((remainder > 0)?1:0);
 		this.lastBlockSize = (remainder > 0)?remainder:blockSize;
+		this.interested = new PiecePicker(this.blockNum, this.rd);
+		this.downloading = new PieceSet(this.blockNum);
+		this.writing = new PieceSet(this.blockNum);
+		this.verifying = new PieceSet(this.blockNum);
 		// init bitfield
 		int remainderBits = this.blockNum % 8;
 		int bitfieldBytesNum = this.blockNum/8 + ((remainderBits == 0)?0:1);
-		this.ownBitfield = new byte[bitfieldBytesNum];
+		this.ownBitfield = new AtomicPieceSet(this.blockNum);
+		this.stateFile = new File(fileName + ".state");
 		if(mode != "rw" && mode != "r"){
 			logging.writeLog("severe", "FileManager init: unknown mode");
 			return;
 		}
-		// open target file object
+		// open target file object, "StorageBackend" of Common.cfg
 		try{
-			file = new RandomAccessFile(this.fileName, "rw");
-			// if file already exist, replace it with a empty file
+			ResumeState state = (mode == "rw") ? loadResumeState(bitfieldBytesNum) : null;
+			// if file already exist and can't be resumed, replace it with a empty file
+			file = StorageBackend.open(this.fileName, this.fileLength, mode == "rw" && state == null);
 			if(mode == "rw"){
-				file.setLength(0);
-				file.setLength(this.fileLength);
+				if(state != null){
+					this.ownBitfield.addAll(PieceSet.fromBitfield(state.bitfield, bitfieldBytesNum, this.blockNum));
+				}
 				for(int i = 0; i < this.blockNum; i++){
-					this.interested.add(i);
+					if(!isOwnBitfieldContain(i)) this.interested.add(i);
+				}
+				if(sysInfo.getWriteQueueSize() > 0){
+					this.diskWriter = new DiskWriter(this, sysInfo.getWriteQueueSize());
+				}
+				if(state != null){
+					for(int blockIdx: state.uncertain){
+						if(blockIdx >= 0 && blockIdx < this.blockNum && !isOwnBitfieldContain(blockIdx)) this.uncertain.add(blockIdx);
+					}
+					logging.writeLog(String.format(
+						"FileManager resume download from %s, own %s blocks, %s blocks to recheck",
+						this.stateFile, getOwnBitfieldSize(), this.uncertain.size()
+					));
 				}
 			}
 			if(mode == "r"){
-				buildOwnBitfield(remainderBits);
+				this.ownBitfield.addAll(PieceSet.full(this.blockNum));
 			}
 		}
 		catch(IOException e){
 			logging.writeLog("severe", "FileManager init: error");
 		}
 	}
-	private void buildOwnBitfield(int remainderBits){
-		byte full = (byte)0b11111111;
-		int bitfieldBytesNum = this.ownBitfield.length;
-		for(int i = 0; i < bitfieldBytesNum-1; i++){
-			this.ownBitfield[i] |= full;
-		}
-		if(remainderBits == 0){
-			this.ownBitfield[bitfieldBytesNum-1] |= full;
-		}
-		else{
-			byte lastByte = 0;
-			for(int i = 0; i < remainderBits; i++){
-				lastByte |= FileManager.bitFlag[i];
-			}
-			this.ownBitfield[bitfieldBytesNum-1] = lastByte;
-		}
-		// printByteArray(this.ownBitfield);
+	/**
+	 * @return the checkpoint of the last run, null when it is missing, disabled or for another file
+	 */
+	private ResumeState loadResumeState(int bitfieldLen){
+		if(!sysInfo.getResumeDownload()) return null;
+		File data = new File(this.fileName);
+		if(!data.exists() || data.length() != this.fileLength) return null;
+		ResumeState state = ResumeState.load(this.stateFile);
+		if(state == null || !state.isFor(this, bitfieldLen)) return null;
+		return state;
 	}
 	private void updateOwnBitfield(int blockIdx){
-		this.ownBitfield[blockIdx/8] |= FileManager.bitFlag[blockIdx%8];
-		// printByteArray(this.ownBitfield);
+		this.ownBitfield.add(blockIdx);
 	}
 
 	public boolean isOwnBitfieldContain(int blockIdx){
-		return ((byte)(this.ownBitfield[blockIdx/8] & FileManager.bitFlag[blockIdx%8]) != 0);
+		return this.ownBitfield.contains(blockIdx);
 	}
 	
 	public int getOwnBitfieldSize(){
-		return BitSet.valueOf(this.ownBitfield).cardinality();
+		return this.ownBitfield.size();
 	}
 
 	private void printByteArray(byte[] bytes){
@@ -132,7 +186,7 @@ public class FileManager {
 	 *
 	 * @return     The instance.
 	 */
-	public static FileManager getInstance(String fileName, String mode, int fileLength, int blockSize){
+	public static FileManager getInstance(String fileName, String mode, long fileLength, int blockSize){
 		if(FileManager.instance == null){
 			FileManager.instance = new FileManager(fileName, mode, fileLength, blockSize);
 		}
@@ -158,20 +212,168 @@ public class FileManager {
 		return FileManager.instance;
 	}
 	/**
-	 * Gets the own bitfield.
+	 * Load the piece hashes (metadata file), the seeder creates the file from its
+	 * complete file when it is missing or describes another file.
+	 * Leechers without the file load it once more for the first received block,
+	 * the seeder may start later. If it is still missing the blocks are not
+	 * verified, with one warning.
 	 *
-	 * @return     The own bitfield.
+	 * @param      hashFile  The metadata file, [FileName].sha256
 	 */
-	public byte[] getOwnBitfield(){
-		// synchronize with write(), make sure we return correct bitfield
-		this.lock.lock();
+	public void initPieceHashes(File hashFile){
+		this.hashFile = hashFile;
+		if(!sysInfo.getVerifyPieces()) return;
+		PieceHashes loaded = PieceHashes.load(hashFile);
+		if(loaded != null && !loaded.isFor(this)){
+			logging.writeLog("warning", "FileManager piece hashes " + hashFile + " are for another file");
+			loaded = null;
+		}
+		if(loaded == null && this.mode == "r"){
+			try{
+				loaded = PieceHashes.create(this);
+				loaded.save(hashFile);
+				logging.writeLog("FileManager created piece hashes " + hashFile);
+			}
+			catch(IOException | InterruptedException e){
+				logging.writeLog("severe", "FileManager create piece hashes failed, ex:" + e);
+			}
+		}
+		this.hashes = loaded;
+		this.isHashesLoaded = loaded != null;
+	}
+	/**
+	 * hash of the block stored in file
+	 *
+	 * @param      blockIdx  The block index
+	 *
+	 * @return     SHA-256 of the block
+	 */
+	byte[] hashBlock(int blockIdx){
+		BufferPool pool = BufferPool.getInstance();
+		int blockLen = getBlockSize(blockIdx);
+		byte[] b = pool.acquire(blockLen);
+		try{
+			read(blockIdx, b, blockLen);
+			return PieceHasher.hash(b, blockLen);
+		}
+		finally{
+			pool.release(b);
+		}
+	}
+	/**
+	 * Hash the uncertain blocks of a resumed download (requested or being verified
+	 * at the last checkpoint), the matching ones are set in the own bitfield.
+	 * Call it after initPieceHashes() and before the server sends BITFIELD.
+	 *
+	 * @return     number of blocks recovered
+	 */
+	public int recheckUncertainBlocks(){
+		if(this.uncertain.isEmpty()) return 0;
+		PieceHashes pieceHashes = getPieceHashes();
+		if(pieceHashes == null){
+			logging.writeLog("warning", "FileManager no piece hashes, download " + this.uncertain.size() + " uncertain blocks again");
+			this.uncertain.clear();
+			return 0;
+		}
+		final AtomicInteger recovered = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(this.uncertain.size());
+		for(int i: this.uncertain){
+			final int blockIdx = i;
+			PieceHasher.execute(new Runnable(){
+				public void run(){
+					try{
+						if(pieceHashes.matches(blockIdx, hashBlock(blockIdx))){
+							markDownloaded(blockIdx);
+							recovered.incrementAndGet();
+						}
+					}
+					finally{
+						done.countDown();
+					}
+				}
+			});
+		}
+		try{
+			done.await();
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		logging.writeLog(String.format(
+			"FileManager recheck %s uncertain blocks, %s recovered", this.uncertain.size(), recovered.get()
+		));
+		this.uncertain.clear();
+		return recovered.get();
+	}
+	/**
+	 * Save own bitfield and the uncertain blocks (downloading, writing, verifying) to the
+	 * state file, for leechers with ResumeDownload on.
+	 */
+	public void checkpoint(){
+		if(this.mode != "rw" || !sysInfo.getResumeDownload()) return;
+		byte[] bitfield;
+		ArrayList<Integer> uncertainBlocks = new ArrayList<Integer>();
+		this.stateLock.lock();
 		try{
-			return this.ownBitfield;
+			bitfield = this.ownBitfield.toBitfield();
+			addAll(uncertainBlocks, this.downloading);
+			addAll(uncertainBlocks, this.writing);
+			addAll(uncertainBlocks, this.verifying);
 		}
 		finally{
-			this.lock.unlock();
+			this.stateLock.unlock();
+		}
+		try{
+			new ResumeState(this.fileLength, this.blockSize, bitfield, uncertainBlocks).save(this.stateFile);
+		}
+		catch(IOException e){
+			logging.writeLog("severe", "FileManager checkpoint " + this.stateFile + " failed, ex:" + e);
+		}
+	}
+	/**
+	 * Scheduler task saving the checkpoint every CheckpointInterval
+	 */
+	public static class Checkpoint implements Runnable {
+		public void run(){
+			FileManager fm = FileManager.getInstance();
+			if(fm != null) fm.checkpoint();
 		}
 	}
+	/**
+	 * @return the piece hashes, null when there are none for this file
+	 */
+	private PieceHashes getPieceHashes(){
+		if(this.isHashesLoaded) return this.hashes;
+		this.hashesLock.lock();
+		try{
+			if(!this.isHashesLoaded){
+				PieceHashes loaded = (this.hashFile == null) ? null : PieceHashes.load(this.hashFile);
+				if(loaded != null && !loaded.isFor(this)) loaded = null;
+				if(loaded == null){
+					logging.writeLog("warning", "FileManager no piece hashes for " + this.fileName + " in " + this.hashFile + ", received blocks are not verified");
+				}
+				this.hashes = loaded;
+				this.isHashesLoaded = true;
+			}
+			return this.hashes;
+		}
+		finally{
+			this.hashesLock.unlock();
+		}
+	}
+	private static void addAll(Collection<Integer> dst, PieceSet src){
+		for(int blockIdx = src.nextSetBit(0); blockIdx != -1; blockIdx = src.nextSetBit(blockIdx + 1)){
+			dst.add(blockIdx);
+		}
+	}
+	/**
+	 * Gets the own bitfield.
+	 *
+	 * @return     The own bitfield, a new array.
+	 */
+	public byte[] getOwnBitfield(){
+		return this.ownBitfield.toBitfield();
+	}
 	/**
 	 * insert block information(bitfield) of peerId
 	 *
@@ -180,20 +382,38 @@ public class FileManager {
 	 * @param      len     length of b
 	 */
 	public void insertBitfield(String peerId, byte[] b, int len){
-		int blockIdx = 0;
-		HashSet<Integer> have = new HashSet<Integer>();
-		for(int i = 0; i < len && blockIdx < this.blockNum; i++){
-			byte curByte = b[i];
-			for(int j = 0; j < 8 && blockIdx < this.blockNum; j++, blockIdx++){
-				if((curByte & FileManager.bitFlag[j]) != 0){
-					have.add(blockIdx);
-				}
-			}
+		PieceSet have = PieceSet.fromBitfield(b, len, this.blockNum);
+		this.stateLock.lock();
+		try{
+			// reconnected peer, replace its previous bitfield in the availability
+			PieceSet previous = this.otherPeerHave.put(peerId, have);
+			if(previous != null) addAvailability(previous, -1);
+			addAvailability(have, 1);
+		}
+		finally{
+			this.stateLock.unlock();
+		}
+	}
+	/**
+	 * forget the block information of peerId, the connection to it is lost,
+	 * its blocks no longer count in the availability
+	 *
+	 * @param      peerId  The peer id
+	 */
+	public void removePeer(String peerId){
+		this.stateLock.lock();
+		try{
+			PieceSet have = this.otherPeerHave.remove(peerId);
+			if(have != null) addAvailability(have, -1);
+		}
+		finally{
+			this.stateLock.unlock();
+		}
+	}
+	private void addAvailability(PieceSet have, int delta){
+		for(int idx = have.nextSetBit(0); idx != -1; idx = have.nextSetBit(idx + 1)){
+			this.interested.addAvailability(idx, delta);
 		}
-		// for(int t : have){
-		// 	System.out.println(t);
-		// }
-		this.otherPeerHave.put(peerId, have);
 	}
 	/**
 	 * update block information of peerId
@@ -202,27 +422,42 @@ public class FileManager {
 	 * @param      blockIdx  The block index peerId updated
 	 */
 	public void updateHave(String peerId, int blockIdx){
-		HashSet<Integer> have = this.otherPeerHave.get(peerId);
-		if(have == null) {
-			logging.writeLog("severe", "FileManager updateHave: no such peerId");
+		if(blockIdx < 0 || blockIdx >= this.blockNum) {
+			logging.writeLog("severe", "FileManager updateHave: out of range");
 			return;
 		}
-		have.add(blockIdx);
+		this.stateLock.lock();
+		try{
+			PieceSet have = this.otherPeerHave.get(peerId);
+			if(have == null) {
+				logging.writeLog("severe", "FileManager updateHave: no such peerId");
+				return;
+			}
+			if(have.add(blockIdx)) this.interested.addAvailability(blockIdx, 1);
+		}
+		finally{
+			this.stateLock.unlock();
+		}
 	}
 
 	/**
-	 * check if others is finished by checking the have HashSet
+	 * check if others is finished by checking the cardinality of its have set
 	 *
 	 * @param      peerId    The peer id
 	 */
 	public boolean isOthersFinish(String peerId){
-		HashSet<Integer> have = this.otherPeerHave.get(peerId);
-		if(have == null) {
-			logging.writeLog("severe", "FileManager updateHave: no such peerId");
-			return false;
+		this.stateLock.lock();
+		try{
+			PieceSet have = this.otherPeerHave.get(peerId);
+			if(have == null) {
+				logging.writeLog("severe", "FileManager updateHave: no such peerId");
+				return false;
+			}
+			return have.isFull();
+		}
+		finally{
+			this.stateLock.unlock();
 		}
-		if(have.size() == blockNum) return true;
-		return false;
 	}
 
 	/**
@@ -231,10 +466,8 @@ public class FileManager {
 	 * @return     True if complete, False otherwise.
 	 */
 	public boolean isComplete(){
-		logging.writeLog(
-			"peer still interested size " + this.interested.size() + ", peer still downloading size " + this.downloading.size()
-		);
-		return (this.downloading.size() + this.interested.size() == 0);
+		logging.writeLogf("peer still interested size %s, peer still downloading size %s", this.interested.size(), this.downloading.size());
+		return (this.downloading.size() + this.interested.size() + this.writing.size() + this.verifying.size() == 0);
 	}
 	/**
 	 * Determines whether the specified peer identifier is interested.
@@ -243,15 +476,21 @@ public class FileManager {
 	 *
 	 * @return     True if the specified peer identifier is interested, False otherwise.
 	 */
-	public synchronized boolean isInterested(String peerId){
-		if(this.interested.size() == 0) return false;
-		ArrayList<Integer> interested = new ArrayList<Integer>(this.interested);
+	public boolean isInterested(String peerId){
+		this.stateLock.lock();
+		try{
+			if(this.interested.size() == 0) return false;
+			PieceSet have = this.otherPeerHave.get(peerId);
+			if(have == null) return false;
 
-		logging.writeLog("check interested in " + interested.size() + " # of blocks from peer " + peerId);
-		// get intersection of interested and have
-		logging.writeLog(String.format("PeerId: %s retain %s of blocks", peerId, this.otherPeerHave.get(peerId).size()));
-		interested.retainAll(this.otherPeerHave.get(peerId));
-		return (interested.size() != 0);
+			logging.writeLogf("check interested in %s # of blocks from peer %s", this.interested.size(), peerId);
+			// any block in the intersection of interested and have, word by word
+			logging.writeLogf("PeerId: %s retain %s of blocks", peerId, have.size());
+			return this.interested.hasAnyIn(have);
+		}
+		finally{
+			this.stateLock.unlock();
+		}
 	}
 	/**
 	 * select interested file block from peerId "have" set and move selected 
@@ -261,25 +500,209 @@ public class FileManager {
 	 *
 	 * @return     -1 when not interested, otherwise return interested block index.
 	 */
-	public synchronized int pickInterestedFileBlock(String peerId){
-		Random rd = new Random();
-		int blockIdx = -1;
-		if(this.interested.size() == 0) {
-			ArrayList<Integer> downloading = new ArrayList<Integer>(this.downloading);
-			if(downloading.size() == 0) {
-				return blockIdx;
+	public int pickInterestedFileBlock(String peerId){
+		List<Integer> picked = pickInterestedFileBlocks(peerId, 1, new HashSet<Integer>());
+		return picked.isEmpty() ? -1 : picked.get(0);
+	}
+	/**
+	 * select up to max interested file blocks from peerId "have" set and move 
+	 * selected block indexes from "interested" to "downloading" set.
+	 * The first RandomFirstPieces blocks are random, then the rarest blocks
+	 * (fewest neighbors have them) are picked first, ties broken at random.
+	 * When nothing is left in "interested" (endgame), pick the blocks still downloading 
+	 * from other peers, the ones requested from fewest peers first, so every
+	 * remaining block is requested from every peer having it and the last blocks
+	 * won't wait for one slow peer. The other requests are cancelled by
+	 * finishRequest() when one copy arrives.
+	 *
+	 * @param      peerId   The peer identifier
+	 * @param      max      The max number of blocks to pick
+	 * @param      exclude  Blocks already requested on this connection
+	 *
+	 * @return     picked block indexes, empty when not interested
+	 */
+	public List<Integer> pickInterestedFileBlocks(String peerId, int max, Collection<Integer> exclude){
+		this.stateLock.lock();
+		try{
+			ArrayList<Integer> picked = new ArrayList<Integer>();
+			PieceSet have = this.otherPeerHave.get(peerId);
+			if(have == null || max <= 0) return picked;
+
+			if(!this.interested.isEmpty()) {
+				if(getOwnBitfieldSize() < this.randomFirstPieces) {
+					this.interested.pickRandom(have, exclude, max, picked);
+				}
+				else {
+					this.interested.pickRarest(have, exclude, max, picked);
+				}
+				for(int blockIdx : picked) {
+					this.downloading.add(blockIdx);
+					this.interested.remove(blockIdx);
+					addRequester(blockIdx, peerId);
+				}
+				return picked;
+			}
+
+			// endgame
+			ArrayList<Integer> candidates = new ArrayList<Integer>();
+			for(int blockIdx = this.downloading.nextSetBit(0); blockIdx != -1; blockIdx = this.downloading.nextSetBit(blockIdx + 1)) {
+				if(have.contains(blockIdx) && !exclude.contains(blockIdx)) candidates.add(blockIdx);
+			}
+			// random order, then fewest requesters first
+			Collections.shuffle(candidates, this.rd);
+			candidates.sort(Comparator.comparingInt(this::getRequesterCount));
+			for(int blockIdx : candidates) {
+				if(picked.size() >= max) break;
+				picked.add(blockIdx);
+				addRequester(blockIdx, peerId);
+			}
+			return picked;
+		}
+		finally{
+			this.stateLock.unlock();
+		}
+	}
+	private void addRequester(int blockIdx, String peerId){
+		HashSet<String> requesters = this.requestedFrom.get(blockIdx);
+		if(requesters == null){
+			requesters = new HashSet<String>();
+			this.requestedFrom.put(blockIdx, requesters);
+		}
+		requesters.add(peerId);
+	}
+	private int getRequesterCount(int blockIdx){
+		HashSet<String> requesters = this.requestedFrom.get(blockIdx);
+		return (requesters == null) ? 0 : requesters.size();
+	}
+	/**
+	 * move requested blocks which will not arrive (choked, connection lost)
+	 * from "downloading" back to "interested", unless other peers are still
+	 * requested for them (endgame)
+	 *
+	 * @param      peerId  The peer the blocks were requested from
+	 * @param      blocks  The block indexes
+	 */
+	public void releaseBlocks(String peerId, Collection<Integer> blocks){
+		this.stateLock.lock();
+		try{
+			for(int blockIdx : blocks) {
+				HashSet<String> requesters = this.requestedFrom.get(blockIdx);
+				if(requesters != null) {
+					requesters.remove(peerId);
+					if(!requesters.isEmpty()) continue;
+					this.requestedFrom.remove(blockIdx);
+				}
+				if(this.downloading.remove(blockIdx) && !isOwnBitfieldContain(blockIdx)) {
+					this.interested.add(blockIdx);
+				}
 			}
-			blockIdx = downloading.get(rd.nextInt(downloading.size()));
-			return blockIdx;
 		}
-		ArrayList<Integer> interested = new ArrayList<Integer>(this.interested);
-		// get intersection of interested and have
-		interested.retainAll(this.otherPeerHave.get(peerId));
-		if(interested.size() == 0) return -1;
-		blockIdx = interested.get(rd.nextInt(interested.size()));
-		this.downloading.add(blockIdx);
-		this.interested.remove(blockIdx);
-		return blockIdx;
+		finally{
+			this.stateLock.unlock();
+		}
+	}
+	/**
+	 * a copy of the block arrived from peerId, forget its requests
+	 *
+	 * @param      blockIdx  The block index
+	 * @param      peerId    The peer the block arrived from
+	 *
+	 * @return     the other peers the block is still requested from, to send CANCEL
+	 */
+	public List<String> finishRequest(int blockIdx, String peerId){
+		this.stateLock.lock();
+		try{
+			ArrayList<String> others = new ArrayList<String>();
+			HashSet<String> requesters = this.requestedFrom.remove(blockIdx);
+			if(requesters != null) {
+				requesters.remove(peerId);
+				others.addAll(requesters);
+			}
+			return others;
+		}
+		finally{
+			this.stateLock.unlock();
+		}
+	}
+	/**
+	 * @return     piece bytes received for blocks which were already written
+	 */
+	public long getDuplicateBytes(){
+		return this.duplicateBytes.get();
+	}
+	/**
+	 * block is written, remove it from "downloading" and "interested"
+	 * (a released block may still arrive) and set own bitfield
+	 */
+	private void markDownloaded(int blockIdx){
+		this.stateLock.lock();
+		try{
+			this.downloading.remove(blockIdx);
+			this.writing.remove(blockIdx);
+			this.interested.remove(blockIdx);
+			updateOwnBitfield(blockIdx);
+		}
+		finally{
+			this.stateLock.unlock();
+		}
+	}
+	/**
+	 * move a written block to "verifying"
+	 *
+	 * @return     false when the block is already verifying or downloaded (endgame duplicate)
+	 */
+	private boolean markVerifying(int blockIdx){
+		this.stateLock.lock();
+		try{
+			if(isOwnBitfieldContain(blockIdx) || !this.verifying.add(blockIdx)) return false;
+			this.downloading.remove(blockIdx);
+			this.writing.remove(blockIdx);
+			this.interested.remove(blockIdx);
+			return true;
+		}
+		finally{
+			this.stateLock.unlock();
+		}
+	}
+	/**
+	 * move a received block to "writing"
+	 *
+	 * @return     false when the block is already queued, verifying or downloaded (endgame duplicate)
+	 */
+	private boolean markWriting(int blockIdx){
+		this.stateLock.lock();
+		try{
+			if(isOwnBitfieldContain(blockIdx) || this.verifying.contains(blockIdx) || !this.writing.add(blockIdx)) return false;
+			this.downloading.remove(blockIdx);
+			this.interested.remove(blockIdx);
+			return true;
+		}
+		finally{
+			this.stateLock.unlock();
+		}
+	}
+	/**
+	 * hash check of a written block, against the hash of the received buffer
+	 *
+	 * @param      hash      null when hashing failed, the check fails
+	 */
+	private void verify(int blockIdx, byte[] hash, VerifyCallback callback){
+		boolean isValid = hash != null && this.hashes.matches(blockIdx, hash);
+		this.stateLock.lock();
+		try{
+			this.verifying.remove(blockIdx);
+			if(isValid) markDownloaded(blockIdx);
+			else this.interested.add(blockIdx);
+		}
+		finally{
+			this.stateLock.unlock();
+		}
+		if(!isValid){
+			logging.writeLog("severe", "FileManager block " + blockIdx + " failed the hash check, request it again");
+		}
+		if(callback == null) return;
+		if(isValid) callback.onBlockVerified(blockIdx);
+		else callback.onBlockCorrupted(blockIdx);
 	}
 	/**
 	 * Gets the block size.
@@ -292,6 +715,25 @@ public class FileManager {
 		if(blockIdx < 0 || blockIdx >= this.blockNum) return -1;
 		return (blockIdx == this.blockNum-1)? this.lastBlockSize: this.blockSize;
 	}
+	/**
+	 * Gets the offset of the block in file.
+	 *
+	 * @param      blockIdx  The block index
+	 *
+	 * @return     The block offset.
+	 */
+	public long getBlockOffset(int blockIdx){
+		return (long)blockIdx*this.blockSize;
+	}
+	/**
+	 * Gets the file channel, used to transfer blocks to sockets without copying.
+	 * Transfers are positional like read/write, there is no shared file pointer.
+	 *
+	 * @return     The file channel, null if the file is not opened.
+	 */
+	public FileChannel getFileChannel(){
+		return (this.file == null) ? null : this.file.getChannel();
+	}
 	/**
 	 * read bytes in blockIdx block to b
 	 *
@@ -313,18 +755,15 @@ public class FileManager {
 		int byteRead = 0;
 		if(blockIdx == this.blockNum-1 && len > this.lastBlockSize) byteRead = this.lastBlockSize;
 		else byteRead = len;
-		this.lock.lock();
+		long start = System.nanoTime();
 		try{
-			this.file.seek(blockIdx*this.blockSize);
-			this.file.read(b, 0, byteRead);
+			this.file.read(getBlockOffset(blockIdx), b, 0, byteRead);
+			Metrics.diskRead.record(System.nanoTime() - start);
 		}	
 		catch(IOException | NullPointerException | IndexOutOfBoundsException e){
 			logging.writeLog("severe", "FileManager read: read failed");
 			byteRead = -1;
 		}
-		finally{
-			this.lock.unlock();
-		}
 		return byteRead;
 	}
 	/**
@@ -337,35 +776,197 @@ public class FileManager {
 	 * @return     -1 when there is an error, otherwise the bytes write to file
 	 */			
 	public int write(int blockIdx, byte[] b, int len){
+		return write(blockIdx, b, len, null);
+	}
+	/**
+	 * write len bytes to blockIdx block on the calling thread, the block is checked
+	 * against the piece hashes like writeBehind(). The own bitfield is set only when
+	 * the hash matches, a corrupted block goes back to "interested" to be requested again.
+	 * b is copied, it can be reused once this returns.
+	 *
+	 * @param      blockIdx  The block index
+	 * @param      b         The byte array
+	 * @param      len       The length of b
+	 * @param      callback  The result of the check, may be null
+	 *
+	 * @return     -1 when there is an error, otherwise the bytes write to file
+	 */
+	public int write(int blockIdx, byte[] b, int len, VerifyCallback callback){
+		if(!isValidWrite(blockIdx, b, len)) return -1;
+		byte[] data = BufferPool.getInstance().acquire(len);
+		System.arraycopy(b, 0, data, 0, len);
+		return writeNow(blockIdx, data, len, callback);
+	}
+	/**
+	 * write len bytes to blockIdx block on the disk writer thread, waits while its
+	 * queue ("WriteQueueSize") is full. Writes on the calling thread when WriteQueueSize is 0.
+	 * The block is hashed from b on the PieceHasher pool meanwhile, the own bitfield
+	 * is set once both the write and the hash check are done, then the callback is called.
+	 * Takes b, a BufferPool array released after the write and the hash, the caller
+	 * must not use it afterwards.
+	 *
+	 * @param      blockIdx  The block index
+	 * @param      b         The byte array
+	 * @param      len       The length of b
+	 * @param      callback  The result of the check, may be null
+	 *
+	 * @return     -1 when there is an error, otherwise the bytes queued or written
+	 */
+	public int writeBehind(int blockIdx, byte[] b, int len, VerifyCallback callback){
+		if(this.diskWriter == null) return writeNow(blockIdx, b, len, callback);
+		if(!isValidWrite(blockIdx, b, len)){
+			BufferPool.getInstance().release(b);
+			return -1;
+		}
+		if(!markWriting(blockIdx)){
+			// endgame duplicate, another peer was faster
+			this.duplicateBytes.addAndGet(len);
+			BufferPool.getInstance().release(b);
+			return len;
+		}
+		ReceivedBlock received = new ReceivedBlock(blockIdx, b, len, callback);
+		try{
+			this.diskWriter.submit(new DiskWriter.Job(received));
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			received.onWritten(false);
+			return -1;
+		}
+		return len;
+	}
+	/**
+	 * write the block on the calling thread, takes b like writeBehind()
+	 */
+	private int writeNow(int blockIdx, byte[] b, int len, VerifyCallback callback){
+		if(!isValidWrite(blockIdx, b, len)){
+			BufferPool.getInstance().release(b);
+			return -1;
+		}
+		if(!markWriting(blockIdx)){
+			// endgame duplicate, another peer was faster
+			this.duplicateBytes.addAndGet(len);
+			BufferPool.getInstance().release(b);
+			return len;
+		}
+		ReceivedBlock received = new ReceivedBlock(blockIdx, b, len, callback);
+		long start = System.nanoTime();
+		try{
+			this.file.write(getBlockOffset(blockIdx), b, 0, len);
+			Metrics.diskWrite.record(System.nanoTime() - start);
+		}
+		catch(IOException | NullPointerException | IndexOutOfBoundsException e){
+			logging.writeLog("severe", "FileManager write: write failed");
+			received.onWritten(false);
+			return -1;
+		}
+		received.onWritten(true);
+		return len;
+	}
+	private boolean isValidWrite(int blockIdx, byte[] b, int len){
 		if(b == null){
 			logging.writeLog("severe", "FileManager write: null buffer");
-			return -1;
+			return false;
 		}
 		if(this.mode == "r"){
 			logging.writeLog("severe", "FileManager write: read mode instance");
-			return -1;
+			return false;
 		}
 		if(blockIdx >= this.blockNum || blockIdx < 0 ||
 			getBlockSize(blockIdx) != len){
 			logging.writeLog("severe", "FileManager write: erroneous parameter");
-			return -1;
+			return false;
+		}
+		return true;
+	}
+	/**
+	 * write blocks with consecutive indexes from firstBlockIdx, one buffer each,
+	 * called by the disk writer
+	 */
+	void writeRun(int firstBlockIdx, ByteBuffer[] srcs) throws IOException{
+		this.file.write(getBlockOffset(firstBlockIdx), srcs);
+	}
+	/**
+	 * A received block between its write and its hash check. The write (disk writer
+	 * or the receiving thread) and the hash of the buffer (PieceHasher pool) run at
+	 * the same time, the one finishing last releases the buffer and sets the own
+	 * bitfield or puts the block back to "interested".
+	 */
+	final class ReceivedBlock implements Runnable {
+		final int blockIdx;
+		final byte[] data;
+		final int len;
+		private final VerifyCallback callback;
+		private final boolean isVerified;
+		// the write, and the hash when verified
+		private final AtomicInteger pending;
+		private volatile boolean isWritten = false;
+		private volatile byte[] hash = null;
+
+		private ReceivedBlock(int blockIdx, byte[] data, int len, VerifyCallback callback){
+			this.blockIdx = blockIdx;
+			this.data = data;
+			this.len = len;
+			this.callback = callback;
+			this.isVerified = sysInfo.getVerifyPieces() && getPieceHashes() != null;
+			this.pending = new AtomicInteger(this.isVerified ? 2 : 1);
+			if(this.isVerified) PieceHasher.execute(this);
+		}
+
+		/**
+		 * hash of the buffer, on the PieceHasher pool
+		 */
+		public void run(){
+			try{
+				this.hash = PieceHasher.hash(this.data, this.len);
+			}
+			finally{
+				done();
+			}
+		}
+
+		/**
+		 * the write is done, on the thread writing the block
+		 */
+		void onWritten(boolean isWritten){
+			this.isWritten = isWritten;
+			done();
 		}
-		this.lock.lock();
-		int byteWrite = len;
+
+		private void done(){
+			if(this.pending.decrementAndGet() != 0) return;
+			BufferPool.getInstance().release(this.data);
+			if(!this.isWritten){
+				onBlockWriteFailed(this.blockIdx, this.callback);
+			}
+			else if(!this.isVerified){
+				markDownloaded(this.blockIdx);
+				if(this.callback != null) this.callback.onBlockVerified(this.blockIdx);
+			}
+			else if(markVerifying(this.blockIdx)){
+				// a failed hash (null) doesn't match, the block is requested again
+				verify(this.blockIdx, this.hash, this.callback);
+			}
+		}
+	}
+	/**
+	 * the received block could not be written, it is interested again
+	 */
+	private void onBlockWriteFailed(int blockIdx, VerifyCallback callback){
+		this.stateLock.lock();
 		try{
-			this.file.seek(blockIdx*this.blockSize);
-			this.file.write(b, 0, len);
-			this.downloading.remove(blockIdx);
-			updateOwnBitfield(blockIdx);
-		}	
-		catch(IOException | NullPointerException | IndexOutOfBoundsException e){
-			logging.writeLog("severe", "FileManager write: write failed");
-			byteWrite = -1;
+			if(this.writing.remove(blockIdx) && !isOwnBitfieldContain(blockIdx)) this.interested.add(blockIdx);
 		}
 		finally{
-			this.lock.unlock();
+			this.stateLock.unlock();
 		}
-		return byteWrite;
+		if(callback != null) callback.onBlockCorrupted(blockIdx);
+	}
+	/**
+	 * @return     the disk writer, null when pieces are written synchronously
+	 */
+	DiskWriter getDiskWriter(){
+		return this.diskWriter;
 	}
 	/**
 	 * close file, for termination
@@ -0,0 +1,14 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output stream which can move a file region straight to its socket (FileChannel.transferTo)
+ * instead of copying the bytes through the java heap.
+ *
+ * The region is sent after every byte written to the stream before it.
+ */
+interface FileRegionOutput {
+	void writeFileRegion(FileChannel file, long position, int len) throws IOException;
+}
@@ -2,11 +2,8 @@ package peer;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.util.HashMap;
 
 import utils.CustomExceptions;
 import utils.ErrorCode;
@@ -21,6 +18,7 @@ public class HandShake implements Serializable {
 	private String peerID; // self-peer ID 
 	private String targetPeerID; // the receiver of the msg
   private boolean success; // success flag for handshake
+	private transient MsgCodec codec; // wire format, not part of the msg
 
 	private static LogHandler logging = new LogHandler();
 	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
@@ -36,6 +34,7 @@ public class HandShake implements Serializable {
 		this.targetPeerID = targetPeer.getId();
 		this.peerMsgHeader = getHeader();
 		this.success = false;
+		this.codec = MsgCodec.create();
 	}
 
 	/**
@@ -49,6 +48,20 @@ public class HandShake implements Serializable {
 		this.peerMsgHeader = getHeader();
 		this.targetPeerID = null;
 		this.success = false;
+		this.codec = MsgCodec.create();
+	}
+
+	/**
+	 * Received handShake, decoded by the codec
+	 * @param peerMsgHeader - header read from the stream
+	 * @param peerID - sender peer ID
+	 */
+	HandShake(String peerMsgHeader, String peerID) {
+		super();
+		this.peerID = peerID;
+		this.peerMsgHeader = peerMsgHeader;
+		this.targetPeerID = null;
+		this.success = false;
 	}
 
 	public byte[] getZeroBits() {
@@ -81,26 +94,18 @@ public class HandShake implements Serializable {
 				.toString();
 	}
 
-	public void SendHandShake(ObjectOutputStream opStream) throws IOException {
-		//ObjectOutputStream opStream = new ObjectOutputStream(out);
-		opStream.reset();
-		opStream.writeObject(this);
-		opStream.flush();
+	public void SendHandShake(OutputStream opStream) throws IOException {
+		this.codec.writeHandShake(opStream, this);
 	}
 
-	public String ReceiveHandShake(ObjectInputStream ipStream) throws IOException, CustomExceptions{
-		try {
-			HandShake Response = (HandShake) ipStream.readObject();
-			logging.logReceiveHandShakeMsg(Response.peerID);
-			checkHeader(Response.peerMsgHeader, Response.peerID);
-			isNeighbor(Response.peerID);
-			setSuccess();
-			return Response != null ? Response.peerID : null;
-		}
-		catch(ClassNotFoundException e){
-			logging.writeLog("severe", "read input stream exception, ex:" + e);
-		}
-		return null;
+	public String ReceiveHandShake(InputStream ipStream) throws IOException, CustomExceptions{
+		HandShake Response = this.codec.readHandShake(ipStream);
+		if(Response == null) return null;
+		logging.logReceiveHandShakeMsg(Response.peerID);
+		checkHeader(Response.peerMsgHeader, Response.peerID);
+		isNeighbor(Response.peerID);
+		setSuccess();
+		return Response.peerID;
 	}
 	
 	/**
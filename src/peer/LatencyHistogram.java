@@ -0,0 +1,82 @@
+package peer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power of 2 microsecond buckets, lock-free.
+ *
+ * - bucket i counts latencies < 2^i us (bucket 0: < 1 us), the last bucket
+ *   takes everything above
+ * - record() is one array increment and two adds, called from the hot paths
+ * - percentiles are the upper bound of the bucket, at most 2x off
+ */
+public class LatencyHistogram {
+	static final int BUCKETS = 28;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNs = new LongAdder();
+	private final AtomicLong maxNs = new AtomicLong();
+
+	/**
+	 * @param ns elapsed nanoseconds
+	 */
+	public void record(long ns) {
+		if(ns < 0) ns = 0;
+		long us = ns / 1000;
+		int i = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(us));
+		this.buckets.incrementAndGet(i);
+		this.count.increment();
+		this.totalNs.add(ns);
+		if(ns > this.maxNs.get()) this.maxNs.accumulateAndGet(ns, Math::max);
+	}
+
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	public long getTotalNs() {
+		return this.totalNs.sum();
+	}
+
+	public long getMaxNs() {
+		return this.maxNs.get();
+	}
+
+	/**
+	 * @return records in bucket i
+	 */
+	long getBucket(int i) {
+		return this.buckets.get(i);
+	}
+
+	/**
+	 * @return upper bound of bucket i in us, Long.MAX_VALUE for the last one
+	 */
+	static long getBucketBoundUs(int i) {
+		return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+	}
+
+	/**
+	 * @param p 0 - 1
+	 * @return upper bound in us of the bucket holding the p quantile, 0 without records
+	 */
+	public long getPercentileUs(double p) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.buckets.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0) return 0;
+		long rank = (long) Math.ceil(p * total);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if(seen >= rank) return i == BUCKETS - 1 ? this.maxNs.get() / 1000 : 1L << i;
+		}
+		return this.maxNs.get() / 1000;
+	}
+}
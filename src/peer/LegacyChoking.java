@@ -0,0 +1,40 @@
+package peer;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import utils.LogHandler;
+
+/**
+ * The original choking policy: when there are more interested neighbors than
+ * preferred slots, sort them by download rate while leeching and shuffle them
+ * once the file is complete.
+ */
+public class LegacyChoking implements ChokingPolicy {
+	private static LogHandler logging = new LogHandler();
+	private final Random R = new Random();
+
+	public Set<String> selectPreferred(List<Peer> candidates, int preferN, boolean isSeeding) {
+		if(candidates.size() > preferN) {
+			if(isSeeding) {
+				logging.writeLog("PreferSelect shuffleByRandom with interestList size: " + candidates.size());
+				Collections.shuffle(candidates, R);
+			}
+			else {
+				logging.writeLog("PreferSelect sortByDownload with interestList size: " + candidates.size());
+				// In descending order.
+				candidates.sort(Comparator.comparingDouble(Peer::getDownloadRate).reversed());
+			}
+		}
+		Set<String> preferred = new HashSet<String>();
+		for(Peer p: candidates) {
+			if(preferred.size() >= preferN) break;
+			preferred.add(p.getId());
+		}
+		return preferred;
+	}
+}
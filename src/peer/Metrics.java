@@ -0,0 +1,309 @@
+package peer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import utils.LogHandler;
+import utils.Tools;
+
+/**
+ * Live metrics of the peer, kept up by the hot paths without lock.
+ *
+ * - counters: msgs sent / received by type (ActualMsg)
+ * - histograms: REQUEST -> PIECE latency (Client), disk read / write latency
+ *   (FileManager, DiskWriter)
+ * - read when asked: bytes in / out and rates per neighbor (Peer meters),
+ *   outstanding requests, pieces remaining, disk write queue, free buffers,
+ *   duplicate piece bytes (endgame)
+ *
+ * Exposed as JMX MXBeans, p2p:type=Peer,id=[host] and
+ * p2p:type=Neighbor,peer=[host],id=[neighbor], and as plain text (Prometheus
+ * text format) on 127.0.0.1:[peer port + MetricsPortOffset] if the
+ * "MetricsPortOffset" in Common.cfg is not 0.
+ */
+public final class Metrics {
+	private static LogHandler logging = new LogHandler();
+	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
+
+	private static final LongAdder[] msgsIn = newAdders(ActualMsg.TYPE_NAMES.length);
+	private static final LongAdder[] msgsOut = newAdders(ActualMsg.TYPE_NAMES.length);
+	static final LatencyHistogram requestLatency = new LatencyHistogram();
+	static final LatencyHistogram diskRead = new LatencyHistogram();
+	static final LatencyHistogram diskWrite = new LatencyHistogram();
+
+	private Metrics() {}
+
+	private static LongAdder[] newAdders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for(int i = 0; i < n; i++) adders[i] = new LongAdder();
+		return adders;
+	}
+
+	static void onRecv(byte type) {
+		if(type >= 0 && type < msgsIn.length) msgsIn[type].increment();
+	}
+
+	static void onSend(byte type) {
+		if(type >= 0 && type < msgsOut.length) msgsOut[type].increment();
+	}
+
+	/**
+	 * Register the MXBeans and start the text endpoint, once the FileManager is set up
+	 */
+	public static void start() {
+		String hostId = sysInfo.getHostPeer().getId();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(new PeerMetrics(), new ObjectName("p2p:type=Peer,id=" + hostId));
+			for(Peer p: sysInfo.getNeighborSnapshot()) {
+				server.registerMBean(new NeighborMetrics(p), new ObjectName("p2p:type=Neighbor,peer=" + hostId + ",id=" + p.getId()));
+			}
+		}
+		catch(JMException e) {
+			logging.writeLog("warning", "Metrics register MXBeans failed, ex:" + e);
+		}
+
+		if(sysInfo.getMetricsPortOffset() == 0) return;
+		int port = sysInfo.getHostPeer().getPort() + sysInfo.getMetricsPortOffset();
+		try {
+			ServerSocket listener = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+			Thread t = new Thread(new Endpoint(listener), "metrics-endpoint");
+			t.setDaemon(true);
+			t.start();
+			logging.writeLog("Metrics endpoint on 127.0.0.1:" + port);
+		}
+		catch(IOException e) {
+			logging.writeLog("warning", "Metrics endpoint on port " + port + " failed, ex:" + e);
+		}
+	}
+
+	/**
+	 * @return every metric in the Prometheus text format
+	 */
+	static String render() {
+		StringBuilder sb = new StringBuilder(4096);
+		FileManager fm = FileManager.getInstance();
+		DiskWriter writer = fm == null ? null : fm.getDiskWriter();
+		gauge(sb, "p2p_pieces_total", "", fm == null ? 0 : fm.blockNum);
+		gauge(sb, "p2p_pieces_remaining", "", fm == null ? 0 : fm.blockNum - fm.getOwnBitfieldSize());
+		gauge(sb, "p2p_outstanding_requests", "", Client.getOutstandingCount());
+		gauge(sb, "p2p_write_queue_depth", "", writer == null ? 0 : writer.getQueueDepth());
+		gauge(sb, "p2p_buffer_pool_free", "", BufferPool.getInstance().getFreeCount());
+		gauge(sb, "p2p_duplicate_bytes_total", "", fm == null ? 0 : fm.getDuplicateBytes());
+		for(int type = 0; type < ActualMsg.TYPE_NAMES.length; type++) {
+			String label = "{type=\"" + ActualMsg.TYPE_NAMES[type] + "\"}";
+			gauge(sb, "p2p_msgs_received_total", label, msgsIn[type].sum());
+			gauge(sb, "p2p_msgs_sent_total", label, msgsOut[type].sum());
+		}
+		for(Peer p: sysInfo.getNeighborSnapshot()) {
+			String label = "{peer=\"" + p.getId() + "\"}";
+			gauge(sb, "p2p_neighbor_bytes_in_total", label, p.getDownloadMeter().getTotal());
+			gauge(sb, "p2p_neighbor_bytes_out_total", label, p.getUploadMeter().getTotal());
+			gauge(sb, "p2p_neighbor_download_rate", label, (long) p.getDownloadRate());
+			gauge(sb, "p2p_neighbor_upload_rate", label, (long) p.getUploadRate());
+			gauge(sb, "p2p_neighbor_choked", label, p.getIsChoking() ? 1 : 0);
+			gauge(sb, "p2p_neighbor_interested", label, p.getIsInterested() ? 1 : 0);
+		}
+		histogram(sb, "p2p_request_latency_us", requestLatency);
+		histogram(sb, "p2p_disk_read_latency_us", diskRead);
+		histogram(sb, "p2p_disk_write_latency_us", diskWrite);
+		return sb.toString();
+	}
+
+	private static void gauge(StringBuilder sb, String name, String label, long value) {
+		sb.append(name).append(label).append(' ').append(value).append('\n');
+	}
+
+	private static void histogram(StringBuilder sb, String name, LatencyHistogram h) {
+		long cumulative = 0;
+		for(int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			cumulative += h.getBucket(i);
+			long bound = LatencyHistogram.getBucketBoundUs(i);
+			String le = bound == Long.MAX_VALUE ? "+Inf" : String.valueOf(bound);
+			gauge(sb, name + "_bucket", "{le=\"" + le + "\"}", cumulative);
+		}
+		gauge(sb, name + "_sum", "", h.getTotalNs() / 1000);
+		gauge(sb, name + "_count", "", h.getCount());
+	}
+
+	private static Map<String, Long> byType(LongAdder[] adders) {
+		LinkedHashMap<String, Long> m = new LinkedHashMap<String, Long>();
+		for(int type = 0; type < adders.length; type++) {
+			m.put(ActualMsg.TYPE_NAMES[type], adders[type].sum());
+		}
+		return m;
+	}
+
+	public interface PeerMXBean {
+		int getPiecesTotal();
+		int getPiecesRemaining();
+		int getOutstandingRequests();
+		int getWriteQueueDepth();
+		int getBufferPoolFree();
+		long getDuplicateBytes();
+		Map<String, Long> getMsgsReceived();
+		Map<String, Long> getMsgsSent();
+		long getRequestCount();
+		long getRequestLatencyP50Us();
+		long getRequestLatencyP99Us();
+		long getRequestLatencyMaxUs();
+		long getDiskReadP99Us();
+		long getDiskWriteP99Us();
+	}
+
+	public interface NeighborMXBean {
+		long getBytesIn();
+		long getBytesOut();
+		double getDownloadRate();
+		double getUploadRate();
+		boolean isChoked();
+		boolean isInterested();
+		boolean isComplete();
+	}
+
+	private static class PeerMetrics implements PeerMXBean {
+		public int getPiecesTotal() {
+			FileManager fm = FileManager.getInstance();
+			return fm == null ? 0 : fm.blockNum;
+		}
+
+		public int getPiecesRemaining() {
+			FileManager fm = FileManager.getInstance();
+			return fm == null ? 0 : fm.blockNum - fm.getOwnBitfieldSize();
+		}
+
+		public int getOutstandingRequests() {
+			return Client.getOutstandingCount();
+		}
+
+		public int getWriteQueueDepth() {
+			FileManager fm = FileManager.getInstance();
+			return fm == null || fm.getDiskWriter() == null ? 0 : fm.getDiskWriter().getQueueDepth();
+		}
+
+		public int getBufferPoolFree() {
+			return BufferPool.getInstance().getFreeCount();
+		}
+
+		public long getDuplicateBytes() {
+			FileManager fm = FileManager.getInstance();
+			return fm == null ? 0 : fm.getDuplicateBytes();
+		}
+
+		public Map<String, Long> getMsgsReceived() {
+			return byType(msgsIn);
+		}
+
+		public Map<String, Long> getMsgsSent() {
+			return byType(msgsOut);
+		}
+
+		public long getRequestCount() {
+			return requestLatency.getCount();
+		}
+
+		public long getRequestLatencyP50Us() {
+			return requestLatency.getPercentileUs(0.5);
+		}
+
+		public long getRequestLatencyP99Us() {
+			return requestLatency.getPercentileUs(0.99);
+		}
+
+		public long getRequestLatencyMaxUs() {
+			return requestLatency.getMaxNs() / 1000;
+		}
+
+		public long getDiskReadP99Us() {
+			return diskRead.getPercentileUs(0.99);
+		}
+
+		public long getDiskWriteP99Us() {
+			return diskWrite.getPercentileUs(0.99);
+		}
+	}
+
+	private static class NeighborMetrics implements NeighborMXBean {
+		private final Peer peer;
+
+		NeighborMetrics(Peer peer) {
+			this.peer = peer;
+		}
+
+		public long getBytesIn() {
+			return this.peer.getDownloadMeter().getTotal();
+		}
+
+		public long getBytesOut() {
+			return this.peer.getUploadMeter().getTotal();
+		}
+
+		public double getDownloadRate() {
+			return this.peer.getDownloadRate();
+		}
+
+		public double getUploadRate() {
+			return this.peer.getUploadRate();
+		}
+
+		public boolean isChoked() {
+			return this.peer.getIsChoking();
+		}
+
+		public boolean isInterested() {
+			return this.peer.getIsInterested();
+		}
+
+		public boolean isComplete() {
+			return this.peer.getIsComplete();
+		}
+	}
+
+	/**
+	 * Minimal HTTP/1.0 server, every request gets render()
+	 */
+	private static class Endpoint implements Runnable {
+		private final ServerSocket listener;
+
+		Endpoint(ServerSocket listener) {
+			this.listener = listener;
+		}
+
+		public void run() {
+			while(true) {
+				try(Socket conn = this.listener.accept()) {
+					conn.setSoTimeout(2000);
+					BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.US_ASCII));
+					// request line and headers, the path doesn't matter
+					String line = in.readLine();
+					while(line != null && !line.isEmpty()) line = in.readLine();
+					byte[] body = render().getBytes(StandardCharsets.UTF_8);
+					OutputStream out = conn.getOutputStream();
+					out.write((
+						"HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: " + body.length + "\r\n\r\n"
+					).getBytes(StandardCharsets.US_ASCII));
+					out.write(body);
+					out.flush();
+				}
+				catch(IOException | RuntimeException e) {
+					if(this.listener.isClosed()) return;
+					logging.writeLog("warning", "Metrics endpoint request failed, ex:" + Tools.getStackTrace(e));
+				}
+			}
+		}
+	}
+}
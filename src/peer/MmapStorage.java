@@ -0,0 +1,74 @@
+package peer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * StorageBackend mapping the whole file into memory.
+ *
+ * A MappedByteBuffer is limited to 2 GB, the file is mapped as segments of
+ * SEGMENT_SIZE bytes and a block crossing a segment boundary is copied in two parts.
+ * Absolute get/put don't touch the buffer position, so blocks are copied
+ * concurrently without lock. Dirty pages are forced to disk on close.
+ */
+class MmapStorage implements StorageBackend {
+	static final int SEGMENT_SIZE = 1 << 30;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer[] segments;
+
+	MmapStorage(String fileName, long fileLength, boolean truncate) throws IOException {
+		this.file = new RandomAccessFile(fileName, "rw");
+		if(truncate) {
+			// if file already exist, replace it with a empty file
+			this.file.setLength(0);
+		}
+		if(this.file.length() < fileLength) {
+			this.file.setLength(fileLength);
+		}
+		FileChannel channel = this.file.getChannel();
+		int segmentNum = (int) ((fileLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+		this.segments = new MappedByteBuffer[segmentNum];
+		for(int i = 0; i < segmentNum; i++) {
+			long start = (long) i * SEGMENT_SIZE;
+			this.segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, fileLength - start));
+		}
+	}
+
+	public void read(long position, byte[] b, int off, int len) {
+		while(len > 0) {
+			MappedByteBuffer segment = this.segments[(int) (position / SEGMENT_SIZE)];
+			int segmentPos = (int) (position % SEGMENT_SIZE);
+			int n = Math.min(len, segment.limit() - segmentPos);
+			segment.get(segmentPos, b, off, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void write(long position, byte[] b, int off, int len) {
+		while(len > 0) {
+			MappedByteBuffer segment = this.segments[(int) (position / SEGMENT_SIZE)];
+			int segmentPos = (int) (position % SEGMENT_SIZE);
+			int n = Math.min(len, segment.limit() - segmentPos);
+			segment.put(segmentPos, b, off, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	public FileChannel getChannel() {
+		return this.file.getChannel();
+	}
+
+	public void close() throws IOException {
+		for(MappedByteBuffer segment: this.segments) {
+			segment.force();
+		}
+		this.file.close();
+	}
+}
@@ -0,0 +1,63 @@
+package peer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Wire format of ActualMsg and HandShake.
+ *
+ * - binary: project description format, [4-byte length][1-byte type][payload]
+ * - object: (legacy) java serialization of the msg objects
+ *
+ * Select it with "MessageCodec" in Common.cfg, every peer in the swarm must use the same one.
+ * A codec object belongs to one connection, it is not thread-safe.
+ */
+public interface MsgCodec {
+
+	/**
+	 * Create a codec object by the system param
+	 * @return codec for one connection
+	 */
+	public static MsgCodec create() {
+		if("object".equals(SystemInfo.getSingletonObj().getMsgCodec())) {
+			return new ObjectMsgCodec();
+		}
+		return new BinaryMsgCodec();
+	}
+
+	/**
+	 * Wrap the socket streams, must be called once per connection
+	 * (output before input, object codec exchanges stream headers)
+	 */
+	public OutputStream openOutput(OutputStream out) throws IOException;
+
+	public InputStream openInput(InputStream in) throws IOException;
+
+	/**
+	 * Wrap the socket output, codecs which can send file regions without copying override it
+	 */
+	public default OutputStream openOutput(Socket socket) throws IOException {
+		return openOutput(socket.getOutputStream());
+	}
+
+	/**
+	 * Write and flush one msg
+	 */
+	public void write(OutputStream out, NoPayloadMsg msg) throws IOException;
+
+	/**
+	 * Read one msg
+	 * @param holder - msg objects of holder may be reused to store the incoming msg
+	 * @return null when the msg can not be decoded
+	 */
+	public NoPayloadMsg read(InputStream in, ActualMsg holder) throws IOException;
+
+	public void writeHandShake(OutputStream out, HandShake handShake) throws IOException;
+
+	/**
+	 * @return the received handshake, null when it can not be decoded
+	 */
+	public HandShake readHandShake(InputStream in) throws IOException;
+}
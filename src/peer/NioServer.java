@@ -0,0 +1,479 @@
+package peer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import utils.CustomExceptions;
+import utils.LogHandler;
+import utils.Tools;
+
+/**
+ * Server engine on ServerSocketChannel / Selector, select it by "ServerEngine nio" in Common.cfg.
+ *
+ * This thread only accepts sockets, connections are handed out round robin to
+ * a fixed pool of event loops (ServerEventLoops). Each loop drives handshake,
+ * bitfield, request and complete of its connections without blocking on the socket.
+ * Msgs are the binary codec frames, the reactions are the same ServerSession as Server.Handler.
+ */
+public class NioServer extends Thread {
+
+	private Peer hostPeer;
+	private EventLoop[] loops;
+	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
+	private static LogHandler logging = new LogHandler();
+
+	public NioServer() {
+		this.hostPeer = sysInfo.getHostPeer();
+	}
+
+	public void run() {
+		logging.logStartServer();
+		ServerSocketChannel listener = null;
+		try {
+			listener = ServerSocketChannel.open();
+			listener.bind(new InetSocketAddress(this.hostPeer.getPort()));
+			sysInfo.initServerListener(listener.socket());
+
+			this.loops = new EventLoop[sysInfo.getServerEventLoops()];
+			for(int i = 0; i < this.loops.length; i++) {
+				this.loops[i] = new EventLoop(i);
+				this.loops[i].start();
+			}
+			logging.writeLog("(nio server thread) start " + this.loops.length + " event loops");
+
+			Server.startSelectTimers();
+
+			int clientNum = 0;
+			while(true) {
+				SocketChannel channel = listener.accept();
+				this.loops[clientNum % this.loops.length].register(channel, clientNum);
+				logging.writeLogf("(nio server thread) # %s client is connected", clientNum);
+				clientNum++;
+			}
+		}
+		catch(IOException e) {
+			if(sysInfo.getIsNeighborsComplete()) {
+				logging.writeLog("(nio server thread) ServerSocketChannel, neighbors all completed, closing server thread");
+			}
+			else {
+				String trace = Tools.getStackTrace(e);
+				logging.writeLog("severe", "(nio server thread) ServerSocketChannel IOException: " + trace);
+			}
+		}
+		finally {
+			try {
+				if(listener != null) listener.close();
+			}
+			catch(IOException e) {
+			}
+			if(this.loops != null) {
+				for(EventLoop loop: this.loops) {
+					if(loop != null) loop.shutdown();
+				}
+			}
+		}
+		return;
+	}
+
+	/**
+	 * One selector thread, owns the connections registered to it
+	 */
+	private static class EventLoop extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<NioConnection> newConns = new ConcurrentLinkedQueue<NioConnection>();
+		private volatile boolean isClosed = false;
+
+		EventLoop(int no) throws IOException {
+			super("nio-event-loop-" + no);
+			this.selector = Selector.open();
+		}
+
+		void register(SocketChannel channel, int no) throws IOException {
+			channel.configureBlocking(false);
+			this.newConns.add(new NioConnection(channel, no, this));
+			this.selector.wakeup();
+		}
+
+		void shutdown() {
+			this.isClosed = true;
+			this.selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while(!this.isClosed) {
+					this.selector.select();
+					NioConnection conn;
+					while((conn = this.newConns.poll()) != null) {
+						try {
+							conn.key = conn.channel.register(this.selector, SelectionKey.OP_READ, conn);
+						}
+						catch(IOException e) {
+							conn.close(e);
+						}
+					}
+					Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						conn = (NioConnection) key.attachment();
+						try {
+							if(key.isValid() && key.isReadable()) conn.onReadable();
+							if(key.isValid() && key.isWritable()) conn.onWritable();
+						}
+						catch(CustomExceptions | IOException e) {
+							conn.close(e);
+						}
+					}
+				}
+			}
+			catch(IOException | ClosedSelectorException e) {
+				String trace = Tools.getStackTrace(e);
+				logging.writeLog("severe", "(nio event loop) selector failed, ex:" + trace);
+			}
+			finally {
+				for(SelectionKey key: this.selector.keys()) {
+					((NioConnection) key.attachment()).close(null);
+				}
+				try {
+					this.selector.close();
+				}
+				catch(IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Non-blocking state of one connection
+	 * handshake -> (send handshake, bitfield) -> msgs -> close after the complete reply is written
+	 */
+	private static class NioConnection {
+		private static final int OUT_BUFFER_SIZE = 1 << 16;
+
+		final SocketChannel channel;
+		SelectionKey key;
+		private final int no;
+		private final EventLoop loop;
+		private final int maxMsgLen;
+
+		// inbound frames, decoded by ActualMsg / HandShake through inView once complete
+		private final ByteBuffer inBuf;
+		private final InputStream inView;
+		// outbound bytes written by ActualMsg.send from any thread
+		private final ReentrantLock outLock = new ReentrantLock();
+		private ByteBuffer outBuf = ByteBuffer.allocate(OUT_BUFFER_SIZE);
+		// zero-copy piece data, each region goes out after its bytesBefore bytes of outBuf
+		private final ArrayDeque<FileRegion> regions = new ArrayDeque<FileRegion>();
+		private int bytesSinceRegion = 0;
+		private long regionBytes = 0;
+		// pieces go as file regions only with ZeroCopyUpload, like BinaryMsgCodec.openOutput
+		private final OutputStream opStream = sysInfo.getZeroCopyUpload() ? new RegionOutboundStream() : new OutboundStream();
+
+		private final HandShake handShake = new HandShake();
+		private final ActualMsg actMsg = new ActualMsg();
+		private ServerSession session = null;
+		private Peer client = null;
+		private boolean closeAfterFlush = false;
+		private boolean isReadPaused = false;
+		private boolean isClosed = false;
+
+		NioConnection(SocketChannel channel, int no, EventLoop loop) {
+			this.channel = channel;
+			this.no = no;
+			this.loop = loop;
+			this.maxMsgLen = BinaryMsgCodec.maxMsgLen(sysInfo.getFileSize(), sysInfo.getPieceSize());
+			this.inBuf = ByteBuffer.allocate(Math.max(this.maxMsgLen + 4, BinaryMsgCodec.HANDSHAKE_LEN));
+			this.inView = new ByteBufferInputStream(this.inBuf);
+		}
+
+		void onReadable() throws IOException, CustomExceptions {
+			int n = this.channel.read(this.inBuf);
+			if(n < 0) throw new EOFException("(nio connection) client closed the connection");
+			processInput();
+		}
+
+		/**
+		 * Handle every complete frame in inBuf
+		 */
+		private void processInput() throws IOException, CustomExceptions {
+			this.inBuf.flip();
+			try {
+				if(this.session == null && this.inBuf.remaining() >= BinaryMsgCodec.HANDSHAKE_LEN) {
+					onHandShake();
+				}
+				while(this.session != null && !this.closeAfterFlush && this.inBuf.remaining() >= 4) {
+					if(pendingOut() > 4 * this.maxMsgLen) {
+						// the client doesn't drain its pieces, stop reading until it does
+						pauseRead(true);
+						break;
+					}
+					int msgLen = this.inBuf.getInt(this.inBuf.position());
+					if(msgLen < 1 || msgLen > this.maxMsgLen) {
+						throw new IOException("(nio connection) invalid msg length " + msgLen);
+					}
+					if(this.inBuf.remaining() < 4 + msgLen) break;
+					byte msg_type = this.actMsg.recv(this.inView);
+					if(msg_type != -1 && this.session.reactions(msg_type)) {
+						// reply complete is queued, close once it is written
+						this.closeAfterFlush = true;
+					}
+				}
+			}
+			finally {
+				this.inBuf.compact();
+			}
+			if(this.closeAfterFlush && pendingOut() == 0) close(null);
+		}
+
+		private void onHandShake() throws IOException, CustomExceptions {
+			String getClientId = this.handShake.ReceiveHandShake(this.inView);
+			if(!this.handShake.isSuccess() || getClientId == null) return;
+			this.client = sysInfo.getNeighborMap().get(getClientId);
+			this.handShake.setTargetPeerID(getClientId);
+			this.handShake.SendHandShake(this.opStream);
+			logging.logSendHandShakeMsg(getClientId, "server");
+			logging.logHandShakeSuccess(sysInfo.getHostPeer(), this.client);
+
+			this.actMsg.setInterConnPeer(this.client);
+			TraceRecorder.recordHandshake(true, this.client);
+			this.session = new ServerSession(this.client, this.actMsg, this.opStream, this.channel.socket());
+			this.session.open();
+		}
+
+		void onWritable() throws IOException, CustomExceptions {
+			int left;
+			this.outLock.lock();
+			try {
+				this.outBuf.flip();
+				try {
+					writeOut();
+				}
+				finally {
+					this.outBuf.compact();
+				}
+				left = pendingOut();
+				if(left == 0) {
+					this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+			}
+			finally {
+				this.outLock.unlock();
+			}
+			if(left == 0 && this.closeAfterFlush) {
+				close(null);
+			}
+			else if(this.isReadPaused && left <= this.maxMsgLen) {
+				pauseRead(false);
+				processInput();
+			}
+		}
+
+		/**
+		 * Write outBuf (read mode) and the file regions in order, until the socket is full
+		 */
+		private void writeOut() throws IOException {
+			FileRegion r;
+			while((r = this.regions.peek()) != null) {
+				if(r.bytesBefore > 0) {
+					int limit = this.outBuf.limit();
+					this.outBuf.limit(this.outBuf.position() + r.bytesBefore);
+					int n = this.channel.write(this.outBuf);
+					this.outBuf.limit(limit);
+					r.bytesBefore -= n;
+					if(r.bytesBefore > 0) return;
+				}
+				long n = r.file.transferTo(r.position, r.remaining, this.channel);
+				if(n == 0 && r.position >= r.file.size()) {
+					throw new IOException("(nio connection) transfer failed at position " + r.position + ", file too short");
+				}
+				r.position += n;
+				r.remaining -= n;
+				this.regionBytes -= n;
+				if(r.remaining > 0) return;
+				this.regions.poll();
+			}
+			this.channel.write(this.outBuf);
+			// no region queued, whatever is left of outBuf precedes the next one
+			this.bytesSinceRegion = this.outBuf.remaining();
+		}
+
+		private void pauseRead(boolean pause) {
+			this.isReadPaused = pause;
+			if(pause) this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+			else this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+		}
+
+		private int pendingOut() {
+			this.outLock.lock();
+			try {
+				return (int) Math.min(Integer.MAX_VALUE, this.outBuf.position() + this.regionBytes);
+			}
+			finally {
+				this.outLock.unlock();
+			}
+		}
+
+		private void enqueue(byte[] b, int off, int len) throws IOException {
+			this.outLock.lock();
+			try {
+				if(this.isClosed) throw new IOException("(nio connection) connection is closed");
+				if(this.outBuf.remaining() < len) {
+					int size = this.outBuf.capacity();
+					while(size - this.outBuf.position() < len) size *= 2;
+					ByteBuffer bigger = ByteBuffer.allocate(size);
+					this.outBuf.flip();
+					bigger.put(this.outBuf);
+					this.outBuf = bigger;
+				}
+				this.outBuf.put(b, off, len);
+				this.bytesSinceRegion += len;
+			}
+			finally {
+				this.outLock.unlock();
+			}
+		}
+
+		private void enqueueRegion(FileChannel file, long position, int len) throws IOException {
+			this.outLock.lock();
+			try {
+				if(this.isClosed) throw new IOException("(nio connection) connection is closed");
+				this.regions.add(new FileRegion(file, position, len, this.bytesSinceRegion));
+				this.bytesSinceRegion = 0;
+				this.regionBytes += len;
+			}
+			finally {
+				this.outLock.unlock();
+			}
+			requestWrite();
+		}
+
+		private void requestWrite() {
+			SelectionKey k = this.key;
+			if(k == null || !k.isValid()) return;
+			k.interestOps(k.interestOps() | SelectionKey.OP_WRITE);
+			if(Thread.currentThread() != this.loop) {
+				this.loop.selector.wakeup();
+			}
+		}
+
+		/**
+		 * Close the connection, same clean up as Server.Handler
+		 * @param cause null when closed normally
+		 */
+		void close(Exception cause) {
+			this.outLock.lock();
+			try {
+				if(this.isClosed) return;
+				this.isClosed = true;
+			}
+			finally {
+				this.outLock.unlock();
+			}
+			String peerId = this.client != null ? this.client.getId() : "";
+			if(cause instanceof EOFException) {
+				logging.writeLog("(nio connection) client closed the connection, peerId:" + peerId);
+				if(this.session != null) {
+					this.session.onPeerClosed();
+				}
+			}
+			else if(cause != null) {
+				String trace = Tools.getStackTrace(cause);
+				logging.writeLog("severe", "(nio connection) # " + this.no + " exception with client " + peerId + ", ex:" + trace);
+			}
+			if(this.session != null) {
+				logging.writeLog("(nio connection) " + peerId + " connection closing, connection handler with client");
+				this.session.removePeerFromMap();
+			}
+			try {
+				if(this.key != null) this.key.cancel();
+				this.channel.close();
+			}
+			catch(IOException e) {
+				String trace = Tools.getStackTrace(e);
+				logging.writeLog("severe", "(nio connection) close connection failed : " + peerId + ", ex:" + trace);
+			}
+		}
+
+		/**
+		 * ActualMsg.send writes a frame then flushes, flush hands it to the event loop
+		 */
+		private class OutboundStream extends OutputStream {
+			public void write(int b) throws IOException {
+				enqueue(new byte[] {(byte) b}, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				enqueue(b, off, len);
+			}
+
+			public void flush() {
+				requestWrite();
+			}
+
+			public void close() {
+				// the event loop closes the channel
+			}
+		}
+
+		/**
+		 * ZeroCopyUpload on, sendFileBlock queues the piece data as a file region
+		 */
+		private class RegionOutboundStream extends OutboundStream implements FileRegionOutput {
+			public void writeFileRegion(FileChannel file, long position, int len) throws IOException {
+				enqueueRegion(file, position, len);
+			}
+		}
+	}
+
+	/**
+	 * Piece data waiting in a file, sent by transferTo from the event loop
+	 */
+	private static class FileRegion {
+		final FileChannel file;
+		long position;
+		long remaining;
+		// outBuf bytes queued between the previous region and this one
+		int bytesBefore;
+
+		FileRegion(FileChannel file, long position, int len, int bytesBefore) {
+			this.file = file;
+			this.position = position;
+			this.remaining = len;
+			this.bytesBefore = bytesBefore;
+		}
+	}
+
+	/**
+	 * Reads the complete frames buffered in a ByteBuffer (read mode)
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buf;
+
+		ByteBufferInputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		public int read() {
+			return this.buf.hasRemaining() ? (this.buf.get() & 0xff) : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if(!this.buf.hasRemaining()) return -1;
+			int n = Math.min(len, this.buf.remaining());
+			this.buf.get(b, off, n);
+			return n;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package peer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import utils.LogHandler;
+
+/**
+ * Legacy wire format - java serialization of NoPayloadMsg / HandShake objects.
+ * Kept for peers still running the old build, use BinaryMsgCodec otherwise.
+ */
+public class ObjectMsgCodec implements MsgCodec {
+
+	private static LogHandler logging = new LogHandler();
+
+	public OutputStream openOutput(OutputStream out) throws IOException {
+		return new ObjectOutputStream(out);
+	}
+
+	public InputStream openInput(InputStream in) throws IOException {
+		return new ObjectInputStream(in);
+	}
+
+	public void write(OutputStream out, NoPayloadMsg msg) throws IOException {
+		ObjectOutputStream opStream = (ObjectOutputStream) out;
+		opStream.reset();
+		opStream.writeObject(msg);
+		opStream.flush();
+	}
+
+	public NoPayloadMsg read(InputStream in, ActualMsg holder) throws IOException {
+		try {
+			return (NoPayloadMsg) ((ObjectInputStream) in).readObject();
+		}
+		catch(ClassNotFoundException e) {
+			logging.writeLog("severe", "read input stream exception, ex:" + e);
+		}
+		return null;
+	}
+
+	public void writeHandShake(OutputStream out, HandShake handShake) throws IOException {
+		ObjectOutputStream opStream = (ObjectOutputStream) out;
+		opStream.reset();
+		opStream.writeObject(handShake);
+		opStream.flush();
+	}
+
+	public HandShake readHandShake(InputStream in) throws IOException {
+		try {
+			return (HandShake) ((ObjectInputStream) in).readObject();
+		}
+		catch(ClassNotFoundException e) {
+			logging.writeLog("severe", "read input stream exception, ex:" + e);
+		}
+		return null;
+	}
+}
@@ -1,6 +1,6 @@
 package peer;
 
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import utils.CustomExceptions;
 import utils.ErrorCode;
@@ -16,18 +16,20 @@ public class Peer {
   private boolean hasFile;
   
   /**
-   * Peer showing the file transfer state status
+   * Peer showing the file transfer state status, one bit per flag in one word.
+   * Getters are a volatile load, setters a compare-and-set returning the
+   * previous value, so a caller knows if it made the transition.
    */
-  private final ReentrantLock lock = new ReentrantLock();
-  private boolean isInterested = false;
-  private boolean isChoking = false;
-  private boolean isDownLoading = false;
-  private double downloadRate = 0.0;
+  private static final int INTERESTED = 1;
+  private static final int CHOKING = 1 << 1;
+  private static final int DOWNLOADING = 1 << 2;
+  private static final int COMPLETE = 1 << 3;
+  private final AtomicInteger state = new AtomicInteger(0);
   /**
-   * Using to check if every other node is finish
+   * Bytes received from / sent to the peer, averaged by the choking timer
    */
-  private boolean isComplete = false;
-  
+  private final RateMeter downloadMeter = new RateMeter();
+  private final RateMeter uploadMeter = new RateMeter();
   public Peer() {
     
 	}
@@ -70,79 +72,101 @@ public class Peer {
     return this.hasFile;
   }
 
+  /**
+   * Using to check if every other node is finish
+   */
   public boolean getIsComplete() {
-    return this.isComplete;
+    return (this.state.get() & COMPLETE) != 0;
   }
 
   /**
    * Down below are functions for server thread 
    * to maintain file transfer progress
+   * @return previous status
    */
-  public void setIsInterested(boolean status) {
-		this.isInterested = status;
+  public boolean setIsInterested(boolean status) {
+    return setFlag(INTERESTED, status);
 	}
 
   public boolean getIsInterested() {
-    this.lock.lock();
-    try {
-		  return this.isInterested;
-    }
-    finally {
-      this.lock.unlock();
-    } 
+    return (this.state.get() & INTERESTED) != 0;
 	}
 
-  public void setChoking() {
-		this.isChoking = true;
+  /**
+   * @return previous choking status
+   */
+  public boolean setChoking() {
+    return setFlag(CHOKING, true);
 	}
 
-  public void setUnChoking() {
-		this.isChoking = false;
+  /**
+   * @return previous choking status
+   */
+  public boolean setUnChoking() {
+    return setFlag(CHOKING, false);
 	}
 
   public boolean getIsChoking() {
-    this.lock.lock();
-    try {
-		  return this.isChoking;
-    }
-    finally {
-      this.lock.unlock();
-    } 
+    return (this.state.get() & CHOKING) != 0;
 	}
 
-  public void setIsDownloading(boolean status) {
-		this.isDownLoading = status;
+  /**
+   * @return previous status
+   */
+  public boolean setIsDownloading(boolean status) {
+    return setFlag(DOWNLOADING, status);
 	}
 
   public boolean getIsDownloading() {
-    this.lock.lock();
-    try {
-		  return this.isDownLoading;
-    }
-    finally {
-      this.lock.unlock();
-    } 
+    return (this.state.get() & DOWNLOADING) != 0;
 	}
 
-  public void setDownloadRate(double rate) {
-		this.downloadRate = rate;
-	}
+  public RateMeter getDownloadMeter() {
+    return this.downloadMeter;
+  }
+
+  public RateMeter getUploadMeter() {
+    return this.uploadMeter;
+  }
 
+  /**
+   * @return bytes per second received from the peer, average at the last sample
+   */
   public double getDownloadRate() {
-    this.lock.lock();
-    try {
-		  return this.downloadRate;
-    }
-    finally {
-      this.lock.unlock();
-    }
-	}
+    return this.downloadMeter.getRate();
+  }
+
+  /**
+   * @return bytes per second sent to the peer, average at the last sample
+   */
+  public double getUploadRate() {
+    return this.uploadMeter.getRate();
+  }
+
+  /**
+   * @return previous status
+   */
+  public boolean setIsComplete() {
+    return setFlag(COMPLETE, true);
+  }
 
-  public void setIsComplete() {
-    this.isComplete = true;
+  /**
+   * @return previous status
+   */
+  public boolean setUnComplete() {
+    return setFlag(COMPLETE, false);
   }
 
-  public void setUnComplete() {
-    this.isComplete = false;
+  /**
+   * CAS the flag bit, other flags changed meanwhile are kept
+   * @return previous value of the flag
+   */
+  private boolean setFlag(int flag, boolean status) {
+    while(true) {
+      int cur = this.state.get();
+      int next = status ? cur | flag : cur & ~flag;
+      if(cur == next) return status;
+      if(this.state.compareAndSet(cur, next)) return !status;
+    }
   }
 }
@@ -0,0 +1,64 @@
+package peer;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SHA-256 of pieces on a dedicated thread pool ("HashThreads" in Common.cfg):
+ * the received pieces, the piece hashes of the seeder and the recheck of a
+ * resumed download. Keeps hashing off the socket reading threads.
+ * Daemon threads, the pool never keeps the peer process alive.
+ */
+public final class PieceHasher {
+	public static final String ALGORITHM = "SHA-256";
+	public static final int DIGEST_LEN = 32;
+
+	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
+	private static final ExecutorService pool = Executors.newFixedThreadPool(
+		sysInfo.getHashThreads(), new HasherThreadFactory()
+	);
+	private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(ALGORITHM);
+			}
+			catch(NoSuchAlgorithmException e) {
+				// every java platform has SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private PieceHasher() {}
+
+	/**
+	 * Run the task on the hashing pool
+	 */
+	public static void execute(Runnable task) {
+		pool.execute(task);
+	}
+
+	/**
+	 * @return SHA-256 of the first len bytes of b
+	 */
+	public static byte[] hash(byte[] b, int len) {
+		MessageDigest md = digest.get();
+		md.reset();
+		md.update(b, 0, len);
+		return md.digest();
+	}
+
+	private static class HasherThreadFactory implements ThreadFactory {
+		private final AtomicInteger no = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "piece-hasher-" + this.no.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package peer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import utils.LogHandler;
+
+/**
+ * SHA-256 of every piece, the metadata file shared by the swarm.
+ *
+ * Text file next to Common.cfg, named [FileName].sha256
+ *   line 1: [FileSize] [PieceSize]
+ *   line 2..: hex digest of piece 0, 1, ...
+ *
+ * The seeder creates it from its file at start up (PieceHashes.create), leechers load it.
+ */
+public class PieceHashes {
+	public final long fileLength;
+	public final int blockSize;
+	private final byte[][] digests;
+
+	private static LogHandler logging = new LogHandler();
+
+	private PieceHashes(long fileLength, int blockSize, byte[][] digests) {
+		this.fileLength = fileLength;
+		this.blockSize = blockSize;
+		this.digests = digests;
+	}
+
+	/**
+	 * Hash every block of the complete file in fm on the PieceHasher pool
+	 */
+	public static PieceHashes create(FileManager fm) throws InterruptedException {
+		byte[][] digests = new byte[fm.blockNum][];
+		CountDownLatch done = new CountDownLatch(fm.blockNum);
+		for(int i = 0; i < fm.blockNum; i++) {
+			final int blockIdx = i;
+			PieceHasher.execute(new Runnable() {
+				public void run() {
+					try {
+						digests[blockIdx] = fm.hashBlock(blockIdx);
+					}
+					finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		return new PieceHashes(fm.fileLength, fm.blockSize, digests);
+	}
+
+	/**
+	 * @return the hashes, null when the file doesn't exist or can't be parsed
+	 */
+	public static PieceHashes load(File file) {
+		if(!file.exists()) return null;
+		try(BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String[] head = reader.readLine().trim().split("\\s+");
+			long fileLength = Long.parseLong(head[0]);
+			int blockSize = Integer.parseInt(head[1]);
+			List<byte[]> digests = new ArrayList<byte[]>();
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(line.isEmpty()) continue;
+				digests.add(fromHex(line));
+			}
+			return new PieceHashes(fileLength, blockSize, digests.toArray(new byte[0][]));
+		}
+		catch(IOException | RuntimeException e) {
+			logging.writeLog("severe", "PieceHashes load " + file + " failed, ex:" + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Write to a temp file then rename it, leechers never read a partial file
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try(PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))) {
+			writer.println(this.fileLength + " " + this.blockSize);
+			for(byte[] d: this.digests) {
+				writer.println(toHex(d));
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return true if the hashes describe the file of fm
+	 */
+	public boolean isFor(FileManager fm) {
+		return this.fileLength == fm.fileLength && this.blockSize == fm.blockSize && this.digests.length == fm.blockNum;
+	}
+
+	public boolean matches(int blockIdx, byte[] digest) {
+		return MessageDigest.isEqual(this.digests[blockIdx], digest);
+	}
+
+	private static String toHex(byte[] b) {
+		StringBuilder sb = new StringBuilder(b.length * 2);
+		for(byte x: b) {
+			sb.append(Character.forDigit((x >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(x & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] fromHex(String s) {
+		if(s.length() != PieceHasher.DIGEST_LEN * 2) {
+			throw new IllegalArgumentException("invalid digest " + s);
+		}
+		byte[] b = new byte[s.length() / 2];
+		for(int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return b;
+	}
+}
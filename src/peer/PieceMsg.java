@@ -14,4 +14,10 @@ public class PieceMsg extends ShortPayloadMsg{
 	public byte[] getData(){
 		return this.data;
 	}
+	// hand the data over to a new owner, the msg forgets it
+	public byte[] takeData(){
+		byte[] data = this.data;
+		this.data = null;
+		return data;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,178 @@
+package peer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The "interested" blocks of FileManager, bucketed by availability
+ * (number of neighbors having the block) for rarest-first picking.
+ *
+ * - availability is kept incrementally from BITFIELD / HAVE (addAvailability)
+ * - add / remove / moving a block between buckets are O(1) swap-removes
+ * - every bucket is also a PieceSet, pickRarest ANDs it with the have set of the
+ *   neighbor word by word from the rarest, buckets the neighbor has nothing in
+ *   cost blockNum / 64 steps. It starts at a random block for random tie-breaking
+ * - pickRandom probes random blocks, used for the first pieces so a new peer
+ *   quickly has something to trade
+ * - the blocks are also kept in a PieceSet, hasAnyIn is a word-wise AND
+ *
+ * Not thread-safe, FileManager guards it with its stateLock.
+ */
+class PiecePicker {
+	private static final int RANDOM_PROBES = 32;
+
+	private final int[] availability;
+	// index of the block in its bucket, -1 when the block is not interested
+	private final int[] pos;
+	private int[][] buckets = new int[4][];
+	private int[] bucketSizes = new int[4];
+	// blocks of every bucket
+	private PieceSet[] levels = new PieceSet[4];
+	private final PieceSet members;
+	private final int blockNum;
+	private final Random rd;
+
+	PiecePicker(int blockNum, Random rd) {
+		this.blockNum = blockNum;
+		this.members = new PieceSet(blockNum);
+		this.availability = new int[blockNum];
+		this.pos = new int[blockNum];
+		Arrays.fill(this.pos, -1);
+		this.rd = rd;
+	}
+
+	int size() {
+		return this.members.size();
+	}
+
+	boolean isEmpty() {
+		return this.members.isEmpty();
+	}
+
+	boolean contains(int blockIdx) {
+		return this.members.contains(blockIdx);
+	}
+
+	/**
+	 * @return true if the block was not interested
+	 */
+	boolean add(int blockIdx) {
+		if(!this.members.add(blockIdx)) return false;
+		push(this.availability[blockIdx], blockIdx);
+		return true;
+	}
+
+	/**
+	 * @return true if the block was interested
+	 */
+	boolean remove(int blockIdx) {
+		if(!this.members.remove(blockIdx)) return false;
+		pull(this.availability[blockIdx], blockIdx);
+		return true;
+	}
+
+	/**
+	 * A neighbor gained (delta 1) or lost (delta -1) the block
+	 */
+	void addAvailability(int blockIdx, int delta) {
+		int level = this.availability[blockIdx];
+		int next = Math.max(0, level + delta);
+		this.availability[blockIdx] = next;
+		if(this.members.contains(blockIdx) && next != level) {
+			pull(level, blockIdx);
+			push(next, blockIdx);
+		}
+	}
+
+	int getAvailability(int blockIdx) {
+		return this.availability[blockIdx];
+	}
+
+	/**
+	 * @return true if any interested block is in have
+	 */
+	boolean hasAnyIn(PieceSet have) {
+		return this.members.intersects(have);
+	}
+
+	/**
+	 * Add up to max blocks of have to picked, rarest first. Doesn't remove them.
+	 */
+	void pickRarest(PieceSet have, Collection<Integer> exclude, int max, List<Integer> picked) {
+		// level 0: no neighbor has it, nobody can send it
+		for(int level = 1; level < this.buckets.length && picked.size() < max; level++) {
+			if(this.bucketSizes[level] == 0) continue;
+			// from a random block to the end, then wrap around
+			int start = this.rd.nextInt(this.blockNum);
+			pickIn(this.levels[level], have, start, this.blockNum, exclude, max, picked);
+			pickIn(this.levels[level], have, 0, start, exclude, max, picked);
+		}
+	}
+
+	/**
+	 * Add the blocks [from, to) of both level and have to picked, up to max
+	 */
+	private static void pickIn(PieceSet level, PieceSet have, int from, int to, Collection<Integer> exclude, int max, List<Integer> picked) {
+		for(int blockIdx = level.nextSetBitIn(have, from); blockIdx != -1 && blockIdx < to && picked.size() < max; blockIdx = level.nextSetBitIn(have, blockIdx + 1)) {
+			if(isPickable(blockIdx, have, exclude, picked)) picked.add(blockIdx);
+		}
+	}
+
+	/**
+	 * Add up to max random blocks of have to picked, falls back to rarest first
+	 * when the random probes miss. Doesn't remove them.
+	 */
+	void pickRandom(PieceSet have, Collection<Integer> exclude, int max, List<Integer> picked) {
+		for(int probe = 0; probe < RANDOM_PROBES && picked.size() < max && !this.members.isEmpty(); probe++) {
+			int r = this.rd.nextInt(this.members.size());
+			int level = 0;
+			while(r >= this.bucketSizes[level]) {
+				r -= this.bucketSizes[level];
+				level++;
+			}
+			int blockIdx = this.buckets[level][r];
+			if(isPickable(blockIdx, have, exclude, picked)) picked.add(blockIdx);
+		}
+		pickRarest(have, exclude, max, picked);
+	}
+
+	private static boolean isPickable(int blockIdx, PieceSet have, Collection<Integer> exclude, List<Integer> picked) {
+		return have.contains(blockIdx) && !exclude.contains(blockIdx) && !picked.contains(blockIdx);
+	}
+
+	private void push(int level, int blockIdx) {
+		if(level >= this.buckets.length) {
+			int len = Math.max(level + 1, this.buckets.length * 2);
+			this.buckets = Arrays.copyOf(this.buckets, len);
+			this.bucketSizes = Arrays.copyOf(this.bucketSizes, len);
+			this.levels = Arrays.copyOf(this.levels, len);
+		}
+		if(this.levels[level] == null) this.levels[level] = new PieceSet(this.blockNum);
+		this.levels[level].add(blockIdx);
+		int[] bucket = this.buckets[level];
+		int n = this.bucketSizes[level];
+		if(bucket == null) {
+			bucket = new int[16];
+			this.buckets[level] = bucket;
+		}
+		else if(n == bucket.length) {
+			bucket = Arrays.copyOf(bucket, n * 2);
+			this.buckets[level] = bucket;
+		}
+		bucket[n] = blockIdx;
+		this.pos[blockIdx] = n;
+		this.bucketSizes[level] = n + 1;
+	}
+
+	private void pull(int level, int blockIdx) {
+		int[] bucket = this.buckets[level];
+		int i = this.pos[blockIdx];
+		int last = --this.bucketSizes[level];
+		bucket[i] = bucket[last];
+		this.pos[bucket[i]] = i;
+		this.pos[blockIdx] = -1;
+		this.levels[level].remove(blockIdx);
+	}
+}
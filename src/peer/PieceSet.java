@@ -0,0 +1,148 @@
+package peer;
+
+import java.util.Arrays;
+
+/**
+ * Set of block indexes [0, blockNum) in 64-bit words, with the cardinality kept
+ * on every add / remove. Used for the own bitfield, "downloading", "verifying",
+ * the interested blocks of PiecePicker and the have set of every neighbor.
+ *
+ * - intersects / nextSetBitIn are word-wise, 64 blocks per step
+ * - fromBitfield / toBitfield convert from/to the BITFIELD msg payload
+ *   (high bit of the first byte is block 0)
+ *
+ * Not thread-safe. FileManager guards the sets with its stateLock,
+ * the own bitfield is an AtomicPieceSet.
+ */
+class PieceSet {
+	private final long[] words;
+	private final int blockNum;
+	private int size = 0;
+
+	PieceSet(int blockNum) {
+		this.blockNum = blockNum;
+		this.words = new long[(blockNum + 63) >>> 6];
+	}
+
+	/**
+	 * @param b   bitfield msg payload
+	 * @param len length of b, bits past blockNum are ignored
+	 */
+	static PieceSet fromBitfield(byte[] b, int len, int blockNum) {
+		PieceSet set = new PieceSet(blockNum);
+		int bytes = Math.min(len, (blockNum + 7) >>> 3);
+		for(int i = 0; i < bytes; i++) {
+			int curByte = b[i] & 0xff;
+			for(int j = 0; j < 8 && curByte != 0; j++) {
+				if((curByte & (0x80 >>> j)) != 0) {
+					int blockIdx = (i << 3) + j;
+					if(blockIdx < blockNum) set.add(blockIdx);
+				}
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * @return set of every block
+	 */
+	static PieceSet full(int blockNum) {
+		PieceSet set = new PieceSet(blockNum);
+		Arrays.fill(set.words, -1L);
+		int tail = blockNum & 63;
+		if(tail != 0) set.words[set.words.length - 1] = (1L << tail) - 1;
+		set.size = blockNum;
+		return set;
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	boolean isFull() {
+		return this.size == this.blockNum;
+	}
+
+	boolean contains(int blockIdx) {
+		return (this.words[blockIdx >>> 6] & (1L << blockIdx)) != 0;
+	}
+
+	/**
+	 * @return true if the block was not in the set
+	 */
+	boolean add(int blockIdx) {
+		int w = blockIdx >>> 6;
+		long bit = 1L << blockIdx;
+		if((this.words[w] & bit) != 0) return false;
+		this.words[w] |= bit;
+		this.size++;
+		return true;
+	}
+
+	/**
+	 * @return true if the block was in the set
+	 */
+	boolean remove(int blockIdx) {
+		int w = blockIdx >>> 6;
+		long bit = 1L << blockIdx;
+		if((this.words[w] & bit) == 0) return false;
+		this.words[w] &= ~bit;
+		this.size--;
+		return true;
+	}
+
+	/**
+	 * @return true if any block is in both sets
+	 */
+	boolean intersects(PieceSet other) {
+		int n = Math.min(this.words.length, other.words.length);
+		for(int i = 0; i < n; i++) {
+			if((this.words[i] & other.words[i]) != 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the first block >= from in the set, -1 if there is none
+	 */
+	int nextSetBit(int from) {
+		if(from < 0 || from >= this.blockNum) return -1;
+		int w = from >>> 6;
+		long word = this.words[w] & (-1L << from);
+		while(true) {
+			if(word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+			if(++w == this.words.length) return -1;
+			word = this.words[w];
+		}
+	}
+
+	/**
+	 * @return the first block >= from in both sets, -1 if there is none
+	 */
+	int nextSetBitIn(PieceSet other, int from) {
+		int n = Math.min(this.words.length, other.words.length);
+		if(from < 0 || from >= this.blockNum || (from >>> 6) >= n) return -1;
+		int w = from >>> 6;
+		long word = this.words[w] & other.words[w] & (-1L << from);
+		while(true) {
+			if(word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+			if(++w == n) return -1;
+			word = this.words[w] & other.words[w];
+		}
+	}
+
+	/**
+	 * @return bitfield msg payload of the set
+	 */
+	byte[] toBitfield() {
+		byte[] b = new byte[(this.blockNum + 7) >>> 3];
+		for(int blockIdx = nextSetBit(0); blockIdx != -1; blockIdx = nextSetBit(blockIdx + 1)) {
+			b[blockIdx >>> 3] |= (byte)(0x80 >>> (blockIdx & 7));
+		}
+		return b;
+	}
+}
@@ -0,0 +1,73 @@
+package peer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StorageBackend on one RandomAccessFile. Blocks are read/written with positional
+ * FileChannel calls, there is no shared file pointer, so reads and writes of
+ * different blocks run concurrently without a lock.
+ *
+ * The channel is closed if a thread is interrupted during I/O, the peer threads
+ * are never interrupted.
+ *
+ * Gathering writes (the disk writer's coalesced runs) need the channel position,
+ * they hold a lock. The positional calls and transferTo don't use the position.
+ */
+class RafStorage implements StorageBackend {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ReentrantLock gatherLock = new ReentrantLock();
+
+	RafStorage(String fileName, long fileLength, boolean truncate) throws IOException {
+		this.file = new RandomAccessFile(fileName, "rw");
+		this.channel = this.file.getChannel();
+		if(truncate) {
+			// if file already exist, replace it with a empty file
+			this.file.setLength(0);
+			this.file.setLength(fileLength);
+		}
+	}
+
+	public void read(long position, byte[] b, int off, int len) throws IOException {
+		ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+		while(dst.hasRemaining()) {
+			int n = this.channel.read(dst, position + dst.position() - off);
+			if(n < 0) throw new EOFException("read past the end of file at " + (position + dst.position() - off));
+		}
+	}
+
+	public void write(long position, byte[] b, int off, int len) throws IOException {
+		ByteBuffer src = ByteBuffer.wrap(b, off, len);
+		while(src.hasRemaining()) {
+			this.channel.write(src, position + src.position() - off);
+		}
+	}
+
+	public void write(long position, ByteBuffer[] srcs) throws IOException {
+		long remaining = 0;
+		for(ByteBuffer src: srcs) remaining += src.remaining();
+		this.gatherLock.lock();
+		try {
+			this.channel.position(position);
+			while(remaining > 0) {
+				remaining -= this.channel.write(srcs);
+			}
+		}
+		finally {
+			this.gatherLock.unlock();
+		}
+	}
+
+	public FileChannel getChannel() {
+		return this.channel;
+	}
+
+	public void close() throws IOException {
+		this.file.close();
+	}
+}
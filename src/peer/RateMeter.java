@@ -0,0 +1,72 @@
+package peer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transfer rate of one peer in one direction (download from / upload to it).
+ *
+ * - add() counts bytes, called by the socket threads without lock
+ * - sample() turns the bytes since the last sample into an exponentially
+ *   weighted moving average, the window is the unchoking interval, so a peer
+ *   keeps most of its rate over one interval and forgets it after a few
+ * - getRate() reads the last average, lock-free, the double is kept as its
+ *   raw long bits
+ *
+ * sample() keeps state of the previous sample, only one thread (the choking
+ * timer) may call it.
+ */
+public class RateMeter {
+	private final LongAdder total = new LongAdder();
+	private volatile long lastActive = System.nanoTime();
+	// sampler state
+	private long sampledTotal = 0;
+	private long sampledAt = System.nanoTime();
+	private final AtomicLong rateBits = new AtomicLong(Double.doubleToRawLongBits(0.0));
+
+	/**
+	 * @param bytes transferred just now
+	 */
+	public void add(long bytes) {
+		this.total.add(bytes);
+		this.lastActive = System.nanoTime();
+	}
+
+	/**
+	 * @return bytes transferred since the peer started
+	 */
+	public long getTotal() {
+		return this.total.sum();
+	}
+
+	/**
+	 * @return System.nanoTime() of the last add(), or of the creation
+	 */
+	public long getLastActive() {
+		return this.lastActive;
+	}
+
+	/**
+	 * Update the average with the bytes since the previous sample
+	 * @param windowSec time constant of the average
+	 */
+	public void sample(int windowSec) {
+		long now = System.nanoTime();
+		long bytes = this.total.sum();
+		double elapsedSec = (now - this.sampledAt) / 1_000_000_000.0;
+		if(elapsedSec <= 0) return;
+		double current = (bytes - this.sampledTotal) / elapsedSec;
+		double alpha = 1.0 - Math.exp(-elapsedSec / Math.max(1, windowSec));
+		double rate = getRate();
+		this.rateBits.set(Double.doubleToRawLongBits(rate + alpha * (current - rate)));
+		this.sampledTotal = bytes;
+		this.sampledAt = now;
+	}
+
+	/**
+	 * @return average bytes per second at the last sample
+	 */
+	public double getRate() {
+		return Double.longBitsToDouble(this.rateBits.get());
+	}
+}
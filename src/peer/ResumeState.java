@@ -0,0 +1,93 @@
+package peer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import utils.LogHandler;
+
+/**
+ * Download state of a leecher, checkpointed next to the downloading file as [file].state
+ * so a restarted peer continues where it stopped.
+ *
+ *   line 1: [FileSize] [PieceSize]
+ *   line 2: own bitfield, hex
+ *   line 3: uncertain blocks, comma separated - requested or being verified at the
+ *           checkpoint, they may be in the file already and are rechecked on restart
+ */
+public class ResumeState {
+	public final long fileLength;
+	public final int blockSize;
+	public final byte[] bitfield;
+	public final List<Integer> uncertain;
+
+	private static LogHandler logging = new LogHandler();
+
+	public ResumeState(long fileLength, int blockSize, byte[] bitfield, List<Integer> uncertain) {
+		this.fileLength = fileLength;
+		this.blockSize = blockSize;
+		this.bitfield = bitfield;
+		this.uncertain = uncertain;
+	}
+
+	/**
+	 * @return the state, null when the file doesn't exist or can't be parsed
+	 */
+	public static ResumeState load(File file) {
+		if(!file.exists()) return null;
+		try(BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			String[] head = reader.readLine().trim().split("\\s+");
+			long fileLength = Long.parseLong(head[0]);
+			int blockSize = Integer.parseInt(head[1]);
+			String hex = reader.readLine().trim();
+			byte[] bitfield = new byte[hex.length() / 2];
+			for(int i = 0; i < bitfield.length; i++) {
+				bitfield[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+			}
+			List<Integer> uncertain = new ArrayList<Integer>();
+			String line = reader.readLine();
+			if(line != null) {
+				for(String idx: line.trim().split(",")) {
+					if(!idx.isEmpty()) uncertain.add(Integer.parseInt(idx));
+				}
+			}
+			return new ResumeState(fileLength, blockSize, bitfield, uncertain);
+		}
+		catch(IOException | RuntimeException e) {
+			logging.writeLog("severe", "ResumeState load " + file + " failed, ex:" + e);
+		}
+		return null;
+	}
+
+	/**
+	 * Write to a temp file then rename it, a crash never leaves a partial state
+	 */
+	public void save(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try(PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(tmp)))) {
+			writer.println(this.fileLength + " " + this.blockSize);
+			StringBuilder sb = new StringBuilder(this.bitfield.length * 2);
+			for(byte b: this.bitfield) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			writer.println(sb);
+			sb.setLength(0);
+			for(int blockIdx: this.uncertain) {
+				if(sb.length() > 0) sb.append(',');
+				sb.append(blockIdx);
+			}
+			writer.println(sb);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return true if the state describes the file of fm
+	 */
+	public boolean isFor(FileManager fm, int bitfieldLen) {
+		return this.fileLength == fm.fileLength && this.blockSize == fm.blockSize && this.bitfield.length == bitfieldLen;
+	}
+}
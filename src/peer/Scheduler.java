@@ -0,0 +1,151 @@
+package peer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.LogHandler;
+import utils.Tools;
+
+/**
+ * One scheduled executor for the periodic work of the peer (PreferSelect,
+ * OptSelect, IsSystemComplete, Checkpoint), instead of a Timer thread each.
+ *
+ * - fixed rate: the choking decisions, runs keep to the interval grid
+ * - fixed delay: housekeeping, the delay counts from the end of the last run
+ * - every run records its drift (start - planned start) and run time, the
+ *   stats are logged at shutdown; a run doing the work of another task
+ *   (Server.runChokeWork) records that work as its own
+ * - trigger() runs a task now on the pool for an event, requests arriving
+ *   while one is pending are merged into it
+ *
+ * An exception of a task is logged, the task keeps its schedule.
+ * The pool has THREADS threads, a task must not wait on a lock held over blocking
+ * I/O (see Server.runChokeWork), it stalls every task queued behind it.
+ */
+public final class Scheduler {
+	private static final int THREADS = 2;
+	private static LogHandler logging = new LogHandler();
+	private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(THREADS, new SchedulerThreadFactory());
+	private static final List<TimedTask> tasks = new ArrayList<TimedTask>();
+
+	private Scheduler() {}
+
+	/**
+	 * Run the task every period, planned from the first run
+	 * @param name for the log
+	 */
+	public static ScheduledFuture<?> scheduleAtFixedRate(String name, Runnable task, long initialDelayMs, long periodMs) {
+		TimedTask timed = register(name, task, initialDelayMs, periodMs, true);
+		return executor.scheduleAtFixedRate(timed, initialDelayMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run the task, then again delay after the end of every run
+	 * @param name for the log
+	 */
+	public static ScheduledFuture<?> scheduleWithFixedDelay(String name, Runnable task, long initialDelayMs, long delayMs) {
+		TimedTask timed = register(name, task, initialDelayMs, delayMs, false);
+		return executor.scheduleWithFixedDelay(timed, initialDelayMs, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Run the task on the pool as soon as possible, once for all triggers
+	 * arriving before it starts
+	 * @param pending flag of the task, owned by the caller
+	 */
+	public static void trigger(AtomicBoolean pending, Runnable task) {
+		if(executor.isShutdown() || !pending.compareAndSet(false, true)) return;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					pending.set(false);
+					task.run();
+				}
+			});
+		}
+		catch(RejectedExecutionException e) {
+			// shut down meanwhile
+			pending.set(false);
+		}
+	}
+
+	/**
+	 * Cancel every task, a running one finishes, and log the stats
+	 */
+	public static void shutdown() {
+		executor.shutdown();
+		synchronized(tasks) {
+			for(TimedTask t: tasks) {
+				logging.logSchedulerStats(t.name, t.runs.get(), t.totalDriftNs.get(), t.maxDriftNs.get(), t.totalRunNs.get(), t.maxRunNs.get());
+			}
+		}
+	}
+
+	private static TimedTask register(String name, Runnable task, long initialDelayMs, long periodMs, boolean isFixedRate) {
+		TimedTask timed = new TimedTask(name, task, initialDelayMs, periodMs, isFixedRate);
+		synchronized(tasks) {
+			tasks.add(timed);
+		}
+		return timed;
+	}
+
+	/**
+	 * Periodic task with drift and run time records, runs never overlap
+	 */
+	private static class TimedTask implements Runnable {
+		private final String name;
+		private final Runnable task;
+		private final long periodNs;
+		private final boolean isFixedRate;
+		// planned start of the next run
+		private long plannedAt;
+		private final AtomicLong runs = new AtomicLong();
+		private final AtomicLong totalDriftNs = new AtomicLong();
+		private final AtomicLong maxDriftNs = new AtomicLong();
+		private final AtomicLong totalRunNs = new AtomicLong();
+		private final AtomicLong maxRunNs = new AtomicLong();
+
+		TimedTask(String name, Runnable task, long initialDelayMs, long periodMs, boolean isFixedRate) {
+			this.name = name;
+			this.task = task;
+			this.periodNs = TimeUnit.MILLISECONDS.toNanos(periodMs);
+			this.isFixedRate = isFixedRate;
+			this.plannedAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelayMs);
+		}
+
+		public void run() {
+			long start = System.nanoTime();
+			long drift = Math.max(0, start - this.plannedAt);
+			try {
+				this.task.run();
+			}
+			catch(RuntimeException e) {
+				String trace = Tools.getStackTrace(e);
+				logging.writeLog("severe", "Scheduler task " + this.name + " failed, ex:" + trace);
+			}
+			long end = System.nanoTime();
+			this.plannedAt = this.isFixedRate ? this.plannedAt + this.periodNs : end + this.periodNs;
+			this.runs.incrementAndGet();
+			this.totalDriftNs.addAndGet(drift);
+			this.maxDriftNs.accumulateAndGet(drift, Math::max);
+			this.totalRunNs.addAndGet(end - start);
+			this.maxRunNs.accumulateAndGet(end - start, Math::max);
+		}
+	}
+
+	private static class SchedulerThreadFactory implements ThreadFactory {
+		private final AtomicInteger no = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "scheduler-" + this.no.getAndIncrement());
+		}
+	}
+}
@@ -3,12 +3,12 @@ package peer;
 import java.net.*;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
-import java.util.TimerTask;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -34,29 +34,15 @@ public class Server extends Thread{
 			sysInfo.initServerListener();
 			ServerSocket listener = sysInfo.getServerListener();
 			try {
-				/**
-				 * Set up the unckoking & opt peer selection mechanism
-				 */
-				logging.writeLog("(server thread) Establishing Timer for PreferSelect with interval: " + sysInfo.getUnChokingInr() + "(sec)");
-				sysInfo.initChokingMap();
-				PreferSelect taskPrefSelect = new PreferSelect();
-				sysInfo.getPreferSelectTimer().schedule(taskPrefSelect, 0, sysInfo.getUnChokingInr()*1000);
-				
-				logging.writeLog("(server thread) Establishing Timer for OptSelect with interval: " + sysInfo.getOptUnChokingInr() + "(sec)");
-				OptSelect taskOptSelect = new OptSelect();
-				sysInfo.getOptSelectTimer().schedule(taskOptSelect, 0, sysInfo.getOptUnChokingInr()*1000);
-				
-				logging.writeLog("(server thread) Establishing Timer for IsSystemComplete with interval: " + 3 + "(sec)");
-				IsSystemComplete taskIsSystemComplete = new IsSystemComplete();
-				sysInfo.getIsSystemCompleteTimer().schedule(taskIsSystemComplete, 10, 3*1000);
+				startSelectTimers();
 
 				int clientNum = 0;
 				while(true) {
-					new Handler(
+					ConnExecutor.execute(new Handler(
 						listener.accept(), 
 						clientNum,
 						this.hostPeer
-					).start();
+					));
 					// System.out.println("Client "  + clientNum + " is connected!");
 					
 					logging.writeLog(String.format(
@@ -82,7 +68,87 @@ public class Server extends Thread{
 		return;
 	}
 
-	public static class IsSystemComplete extends TimerTask {
+	private static PreferSelect preferSelect = null;
+	private static OptSelect optSelect = null;
+	private static final AtomicBoolean isRechokePending = new AtomicBoolean(false);
+	// PreferSelect, OptSelect and the triggered rechoke run on different Scheduler threads,
+	// each makes its choking decisions and sends CHOKE / UNCHOKE holding this lock
+	private static final ReentrantLock chokeLock = new ReentrantLock();
+	// choking work posted to chokeLock's holder
+	private static final int PREFER_TICK = 1;
+	private static final int OPT_TICK = 1 << 1;
+	private static final int RECHOKE = 1 << 2;
+	private static final AtomicInteger chokeWork = new AtomicInteger(0);
+
+	/**
+	 * Set up the unckoking & opt peer selection mechanism on the Scheduler
+	 * - PreferSelect, OptSelect: fixed rate
+	 * - IsSystemComplete, Checkpoint: fixed delay
+	 */
+	static void startSelectTimers() {
+		logging.writeLog("(server thread) Establishing Timer for PreferSelect with interval: " + sysInfo.getUnChokingInr() + "(sec)");
+		sysInfo.initChokingMap();
+		preferSelect = new PreferSelect();
+		Scheduler.scheduleAtFixedRate("PreferSelect", preferSelect, 0, sysInfo.getUnChokingInr()*1000);
+		
+		logging.writeLog("(server thread) Establishing Timer for OptSelect with interval: " + sysInfo.getOptUnChokingInr() + "(sec)");
+		optSelect = new OptSelect();
+		Scheduler.scheduleAtFixedRate("OptSelect", optSelect, 0, sysInfo.getOptUnChokingInr()*1000);
+		
+		logging.writeLog("(server thread) Establishing Timer for IsSystemComplete with interval: " + 3 + "(sec)");
+		IsSystemComplete taskIsSystemComplete = new IsSystemComplete();
+		Scheduler.scheduleWithFixedDelay("IsSystemComplete", taskIsSystemComplete, 10, 3*1000);
+
+		if(fm != null && fm.mode == "rw" && sysInfo.getResumeDownload()) {
+			logging.writeLog("(server thread) Establishing Timer for Checkpoint with interval: " + sysInfo.getCheckpointInterval() + "(sec)");
+			int interval = sysInfo.getCheckpointInterval()*1000;
+			Scheduler.scheduleWithFixedDelay("Checkpoint", new FileManager.Checkpoint(), interval, interval);
+		}
+	}
+
+	/**
+	 * Make the choking decision now instead of at the next PreferSelect tick,
+	 * for events changing the candidates (a neighbor becomes interested or not, leaves)
+	 */
+	static void triggerRechoke() {
+		if(preferSelect == null || sysInfo.getIsNeighborsComplete()) return;
+		Scheduler.trigger(isRechokePending, new Runnable() {
+			public void run() {
+				runChokeWork(RECHOKE);
+			}
+		});
+	}
+
+	/**
+	 * Post the choking work, run it unless another Scheduler thread is in the choking work,
+	 * that thread runs it before leaving. The sends of CHOKE / UNCHOKE block, a Scheduler
+	 * thread never waits on chokeLock, IsSystemComplete and Checkpoint keep the other thread.
+	 * - a PreferSelect tick covers the pending rechoke requests
+	 * - the run time of work handed over is recorded on the holder's task, the
+	 *   Scheduler stats of PreferSelect / OptSelect are approximate
+	 */
+	private static void runChokeWork(int work) {
+		chokeWork.getAndAccumulate(work, (a, b) -> a | b);
+		// check again after the unlock, work posted while the lock was held
+		while(chokeWork.get() != 0 && chokeLock.tryLock()) {
+			try {
+				int pending = chokeWork.getAndSet(0);
+				// the work is taken off chokeWork, an exception must not drop the rest of it
+				try {
+					if((pending & PREFER_TICK) != 0) preferSelect.tick();
+					else if((pending & RECHOKE) != 0) preferSelect.rechoke();
+				}
+				finally {
+					if((pending & OPT_TICK) != 0) optSelect.tick();
+				}
+			}
+			finally {
+				chokeLock.unlock();
+			}
+		}
+	}
+
+	public static class IsSystemComplete implements Runnable {
 		private int countDown = 5;
 		public void run() {
 			logging.writeLog("IsSystemComplete - start checking system isComplete?");
@@ -101,6 +167,12 @@ public class Server extends Thread{
 							closeAllServerConn();
 							Tools.timeSleep(250);
 							closeAllTimer();
+							logging.logBufferPoolStats(BufferPool.getInstance());
+							if(fm != null) logging.logEndgameStats(fm.getDuplicateBytes(), Client.getCancelCount());
+							if(fm != null && fm.getDiskWriter() != null) {
+								DiskWriter writer = fm.getDiskWriter();
+								logging.logDiskWriterStats(writer.getPieceCount(), writer.getWriteCount(), writer.getStallCount());
+							}
 							logging.logSystemIsComplete();
 						}
 					}
@@ -165,18 +237,16 @@ public class Server extends Thread{
 		}
 
 		public void closeAllTimer() {
-			logging.writeLog("All nodes are 'complete', cancel OptSelectTimer");
-			sysInfo.getOptSelectTimer().cancel();
-			logging.writeLog("All nodes are 'complete', cancel PreferSelectTimer");
-			sysInfo.getPreferSelectTimer().cancel();
-			logging.writeLog("All nodes are 'complete', cancel getIsSystemCompleteTimer");
-			sysInfo.getIsSystemCompleteTimer().cancel();
+			logging.writeLog("All nodes are 'complete', shut down the Scheduler (PreferSelect, OptSelect, IsSystemComplete, Checkpoint)");
+			Scheduler.shutdown();
+			logging.writeLog("All nodes are 'complete', save the last checkpoint");
+			if(fm != null) fm.checkpoint();
 		}
 	}
 	/** 
 	 *  This class will set an interval timer to make the unchoking-choking decision.
 	*/
-	public static class PreferSelect extends TimerTask {
+	public static class PreferSelect implements Runnable {
 		/**
     * UnchokingInterval p
     * - NumberOfPreferredNeighbors k
@@ -184,17 +254,14 @@ public class Server extends Thread{
 		private final static int preferN = sysInfo.getPreferN();
 		private ConcurrentHashMap<String, Socket> serverConnMap = new ConcurrentHashMap<String, Socket>();
 		private ConcurrentHashMap<String, ActualMsg> actMsgMap = new ConcurrentHashMap<String, ActualMsg>();
-		private ConcurrentHashMap<String, ObjectOutputStream> serverOpStream = new ConcurrentHashMap<String, ObjectOutputStream>();
+		private ConcurrentHashMap<String, OutputStream> serverOpStream = new ConcurrentHashMap<String, OutputStream>();
 
 		/**
 		 * Select k neighbors from the interesting list
 		 */
-		private HashMap<String, Peer> neighborMap = sysInfo.getNeighborMap();;
-		private HashMap<String, Peer> interestMap = sysInfo.getInterestMap();
-		private HashMap<String, Peer> unChokingMap = sysInfo.getUnChokingMap();
-		private HashMap<String, Peer> chokingMap = sysInfo.getChokingMap();
+		private ConcurrentHashMap<String, Peer> interestMap = sysInfo.getInterestMap();
 
-		private boolean randomlySelect = false;
+		private final ChokingPolicy policy = ChokingPolicy.create();
 		Random R = new Random();
 
 		/**
@@ -207,7 +274,15 @@ public class Server extends Thread{
 		}
 
 		public void run() {
+			runChokeWork(PREFER_TICK);
+		}
+
+		/**
+		 * Sample the rates, choking decision and the obtain list, holding chokeLock
+		 */
+		private void tick() {
 			try {
+				sampleRates();
 				selectNodes();
 				sendNewObtainList();
 			}
@@ -221,65 +296,90 @@ public class Server extends Thread{
 			}
 		}
 
+		/**
+		 * Choking decision only, with the rates of the last sample, holding chokeLock
+		 */
+		private void rechoke() {
+			try {
+				logging.writeLog("PreferSelect - rechoke on event");
+				selectNodes();
+			}
+			catch(CustomExceptions e) {
+				String trace = Tools.getStackTrace(e);
+				logging.writeLog(trace);
+			}
+			catch(IOException e) {
+				String trace = Tools.getStackTrace(e);
+				logging.writeLog("severe", "Server PreferSelect rechoke sending msg failed:" + trace);
+			}
+		}
+
+		/**
+		 * Average the bytes of every neighbor since the last run, over the unchoking interval
+		 */
+		private void sampleRates() {
+			for(Peer p: sysInfo.getNeighborSnapshot()) {
+				p.getDownloadMeter().sample(sysInfo.getUnChokingInr());
+				p.getUploadMeter().sample(sysInfo.getUnChokingInr());
+			}
+		}
+
 		/**
 		 * Select Nodes to choke and unchoke
 		 * 1. update neighbor map
 		 * 2. update interest map 
-		 * 3. random select | picked by download rate
+		 * 3. pick the preferred nodes by the choking policy
 		 * 4. depend on the situation to handle the selected nodes and unselected nodes
 		 * 		a.unchoke -> unchoke => put key in unchokeMap (continue receiving 'request in the reading buffer')
 		 * 		b.unchoke -> choke => send 'choke', remove from unchokeMap, put key in chokeMap
 		 * 													but if the peer is optimistically unchoked, leave it alone
 		 * 		c.choke -> unchoke => send 'unchoke', remove from chokeMap put key in unchokeMap
 		 * 		d.choke -> choke => put key in chokeMap
+		 * The choking flag of the peer tells the cases apart, setChoked / setUnchoked
+		 * return true for b and c. Call it holding chokeLock.
 		 */
 		private int selectNodes() throws IOException, CustomExceptions {
 			logging.writeLog("PreferSelect - start selecting the nodes to pass file pieces");
 			
 			interestMap.clear();
-			for(Entry<String, Peer> n: neighborMap.entrySet()) {
-				if(n.getValue().getHasFile()) continue;
-				if(n.getValue().getIsComplete()) continue;
-				if(sysInfo.getServerConnMap().get(n.getKey()) == null || !sysInfo.getServerConnMap().get(n.getKey()).isConnected()) continue;
-				if(n.getValue().getIsInterested()) {
-					interestMap.put(n.getKey(), n.getValue());
+			for(Peer p: sysInfo.getNeighborSnapshot()) {
+				if(p.getHasFile()) continue;
+				if(p.getIsComplete()) continue;
+				Socket conn = sysInfo.getServerConnMap().get(p.getId());
+				if(conn == null || !conn.isConnected()) continue;
+				if(p.getIsInterested()) {
+					interestMap.put(p.getId(), p);
 				}
 			}
 
 			if(interestMap.isEmpty()) return 0;
 			
-			if(sysInfo.getHostPeer().getHasFile() || (fm != null && fm.isComplete())) {
-				randomlySelect = true;
-			}
+			boolean isSeeding = sysInfo.getHostPeer().getHasFile() || (fm != null && fm.isComplete());
 			
 			// testRandomDownLoadRate();
 			
+			/**
+			 * 3. pick the preferred nodes by the choking policy
+			 */
+			List<Peer> candidates = new ArrayList<Peer>(interestMap.values());
+			Set<String> preferred = policy.selectPreferred(candidates, preferN, isSeeding);
 			List<Entry<String, Peer>> interestList = new ArrayList<Entry<String, Peer>>(interestMap.entrySet());
-			if(interestMap.size() > preferN) {
-				/**
-				 * 3. random select | picked by download rate
-				 */
-				if(randomlySelect) {
-					interestList = shuffleByRandom(interestList);
-				}
-				else {
-					interestList = sortByDownload(interestList);
-				}
-			}
 			
 			for(Entry<String, Peer> i: interestList) {
-				logging.writeLog(String.format("PreferSelect %s download rate: %s", i.getKey(), i.getValue().getDownloadRate()));
+				logging.writeLog(String.format(
+					"PreferSelect %s download rate: %.0f B/s, upload rate: %.0f B/s", i.getKey(), i.getValue().getDownloadRate(), i.getValue().getUploadRate()
+				));
 			}
 			/**
 			 * 4. depend on the situation to handle the selected nodes and unselected nodes
 			 */
-			int count = 1;
 			for(Entry<String, Peer> i: interestList) {
-				if(count > preferN) {
+				if(!preferred.contains(i.getKey())) {
 					// Not been picked, choke them
-					if(i.getKey() == sysInfo.getOptUnchokingPeer().getId()) continue;
-					if(unChokingMap.get(i.getKey()) != null) {
-						// b.unchoke -> choke => send 'choke', remove from unchokeMap, put key in chokeMap
+					if(i.getKey().equals(sysInfo.getOptUnchokingPeer().getId())) continue;
+					// b+d  put key in chokeMap
+					if(sysInfo.setChoked(i.getValue())) {
+						// b.unchoke -> choke => send 'choke'
 						String key = i.getKey();
 						if(actMsgMap.get(key) == null) { 
 							throw new CustomExceptions(ErrorCode.missActMsgObj, "miss peerId: " + key);
@@ -288,15 +388,13 @@ public class Server extends Thread{
 							throw new CustomExceptions(ErrorCode.missServerOpStream, "miss peerId: " + key);
 						}
 						actMsgMap.get(key).send(serverOpStream.get(key), ActualMsg.CHOKE, 0);
-						unChokingMap.remove(key);
 					}
-					// b+d  put key in chokeMap
-					chokingMap.put(i.getKey(), i.getValue());
 				}
 				else {
 					// Been picked, unchoke them, initially every interest neighbors will be choked
-					if(chokingMap.get(i.getKey()) != null) {
-						// c.choke -> unchoke => send 'unchoke', remove from chokeMap put key in unchokeMap  
+					// a+c  put key in unchokeMap, before sending, the handler drops requests of choked peers
+					if(sysInfo.setUnchoked(i.getValue())) {
+						// c.choke -> unchoke => send 'unchoke'
 						String key = i.getKey();
 						if(actMsgMap.get(key) == null) { 
 							throw new CustomExceptions(ErrorCode.missActMsgObj, "miss peerId: " + key);
@@ -305,12 +403,8 @@ public class Server extends Thread{
 							throw new CustomExceptions(ErrorCode.missServerOpStream, "miss peerId: " + key);
 						}
 						actMsgMap.get(key).send(serverOpStream.get(key), ActualMsg.UNCHOKE, 0);
-						chokingMap.remove(key);
 					}
-					// b+d  put key in unchokeMap
-					unChokingMap.put(i.getKey(), i.getValue());
 				}
-				count ++;
 			}
 			logging.logChangePrefersPeers();
 			return 0;
@@ -342,43 +436,13 @@ public class Server extends Thread{
 			}
 		}
 		
-		private List<Entry<String, Peer>> shuffleByRandom(List<Entry<String, Peer>> interestList) {
-			logging.writeLog("PreferSelect shuffleByRandom with interestList size: " + interestList.size());
-			Collections.shuffle(interestList, R);
-			return interestList;
-		}
-
-		private List<Entry<String, Peer>> sortByDownload(List<Entry<String, Peer>> interestList) {
-			logging.writeLog("PreferSelect sortByDownload with interestList size: " + interestList.size());
-			if(interestList.size() > 0) {
-				/**
-				 * Compare the peer objects downloading rate
-				 */
-				Comparator <Entry<String, Peer>> rate = new Comparator<Entry<String, Peer>>() {
-					@Override
-					public int compare(Entry<String, Peer> p1, Entry<String, Peer> p2) {
-						double r1 = p1.getValue().getDownloadRate();
-						double r2 = p2.getValue().getDownloadRate();
-						/**
-						 * In descending order.
-						 */
-						if(r1 < r2) return 1;
-						if(r1 > r2) return -1;
-						return 0;
-					}
-				};
-				
-				Collections.sort(interestList, rate);
-				return interestList;
-			}
-			return null;
-		}
 		/**
 		 * Assign Random download rate to nodes
 		 */
 		private void testRandomDownLoadRate() {	
 			for(Entry<String, Peer> n: interestMap.entrySet()) {
-				n.getValue().setDownloadRate(R.nextDouble());
+				n.getValue().getDownloadMeter().add(R.nextInt(1 << 20));
+				n.getValue().getDownloadMeter().sample(sysInfo.getUnChokingInr());
 			}
 		}
 	}
@@ -386,14 +450,11 @@ public class Server extends Thread{
 	/** 
 	*  This class will set an interval timer to make the opt unchoking decision.
 	*/
-	private static class OptSelect extends TimerTask {
+	private static class OptSelect implements Runnable {
 		
 		Random R = new Random();
-		private ConcurrentHashMap<String, ObjectOutputStream> serverOpStream = new ConcurrentHashMap<String, ObjectOutputStream>();
+		private ConcurrentHashMap<String, OutputStream> serverOpStream = new ConcurrentHashMap<String, OutputStream>();
 		private ConcurrentHashMap<String, ActualMsg> actMsgMap = new ConcurrentHashMap<String, ActualMsg>();
-		private HashMap<String, Peer> neighborMap = sysInfo.getNeighborMap(); 
-		private HashMap<String, Peer> unChokingMap = sysInfo.getUnChokingMap();
-		private HashMap<String, Peer> chokingMap = sysInfo.getChokingMap();
 		List<Peer> interestList = new ArrayList<Peer>();
 		
 		/**
@@ -406,6 +467,13 @@ public class Server extends Thread{
 		}
 
 		public void run() {
+			runChokeWork(OPT_TICK);
+		}
+
+		/**
+		 * Opt unchoking decision, holding chokeLock
+		 */
+		private void tick() {
 			try {
 				logging.writeLog("start OptSelect - selecting optimistically unchoked node with every: " + sysInfo.getOptUnChokingInr() + " sec");
 				selectNodes();
@@ -425,19 +493,20 @@ public class Server extends Thread{
 		 * 2. random pick opt unchoking peer
 		 * 3. check if pick the same as previous -> return
 		 * 
-		 * 4. check the previous node -> if it's in unchoke map -> set it to choke 
-		 * 5. check the new node -> if it's in choke map -> set it to unchoke
+		 * 4. check the previous node -> if it's unchoked -> set it to choke 
+		 * 5. check the new node -> if it's choked -> set it to unchoke
 		 * @return
 		 * @throws IOException
 		 * @throws CustomExceptions
 		 */
 		private int selectNodes() throws IOException, CustomExceptions{
 			interestList.clear();
-			for(Entry<String, Peer> n: neighborMap.entrySet()) {
-				if(n.getValue().getHasFile()) continue;
-				if(n.getValue().getIsComplete()) continue;
-				if(n.getValue().getIsInterested()) {
-					interestList.add(n.getValue());
+			for(Peer p: sysInfo.getNeighborSnapshot()) {
+				if(p.getHasFile()) continue;
+				if(p.getIsComplete()) continue;
+				if(serverOpStream.get(p.getId()) == null) continue;
+				if(p.getIsInterested()) {
+					interestList.add(p);
 				}
 			}
 			
@@ -453,8 +522,9 @@ public class Server extends Thread{
 			// // 3. check if pick the same as previous -> return
 			if(newPeer.getId().equals(previousPeer.getId())) return 0;
 			
-			// 4. check the previous node -> if it's in unchoke map -> set it to choke 
-			if(unChokingMap.get(previousPeer.getId()) != null){
+			// 4. check the previous node -> if it's unchoked -> set it to choke 
+			// (no previous node on the first run, the placeholder peer has no id)
+			if(previousPeer.getId() != null && sysInfo.setChoked(previousPeer)){
 				if(actMsgMap.get(previousPeer.getId()) == null) { 
 					throw new CustomExceptions(ErrorCode.missActMsgObj, "miss peerID: " + previousPeer.getId());
 				}
@@ -462,30 +532,27 @@ public class Server extends Thread{
 					throw new CustomExceptions(ErrorCode.missServerOpStream, "miss peerID: " + previousPeer.getId());
 				}
 				actMsgMap.get(previousPeer.getId()).send(serverOpStream.get(previousPeer.getId()), ActualMsg.CHOKE, 0);
-				unChokingMap.remove(previousPeer.getId());
-				chokingMap.put(previousPeer.getId(), previousPeer);
 			}
 
-			if(chokingMap.get(newPeer.getId()) != null){
+			// update the state first, the handler drops requests of choked peers
+			if(sysInfo.setUnchoked(newPeer)){
 				if(actMsgMap.get(newPeer.getId()) == null) { 
 					throw new CustomExceptions(ErrorCode.missActMsgObj, "miss peerID: " + newPeer.getId());
 				}
 				if(serverOpStream.get(newPeer.getId()) == null) {
 					throw new CustomExceptions(ErrorCode.missServerOpStream, "miss peerID: " + newPeer.getId());
 				}
-				actMsgMap.get(previousPeer.getId()).send(serverOpStream.get(previousPeer.getId()), ActualMsg.UNCHOKE, 0);
-				chokingMap.remove(newPeer.getId());
-				unChokingMap.put(newPeer.getId(), newPeer);
+				actMsgMap.get(newPeer.getId()).send(serverOpStream.get(newPeer.getId()), ActualMsg.UNCHOKE, 0);
 			}
 			return 0;
 		}
 	}
 
 	/**
-	* A handler thread class.  Handlers are spawned from the listening
-	* loop and are responsible for dealing with a single client's requests.
+	* A handler class.  Handlers are spawned from the listening loop on a 
+	* ConnExecutor thread and are responsible for dealing with a single client's requests.
 	*/
-  private static class Handler extends Thread {
+  private static class Handler implements Runnable {
 		private Socket connection;
 		//The index number of the client
 		private int no;		
@@ -493,11 +560,9 @@ public class Server extends Thread{
 		private Peer server;
 		private Peer client;
 		private ActualMsg actMsg;
-		private ConcurrentHashMap<String, Socket> serverConnMap = new ConcurrentHashMap<String, Socket>();
-		private ConcurrentHashMap<String, ActualMsg> actMsgMap = new ConcurrentHashMap<String, ActualMsg>();
-		private ConcurrentHashMap<String, ObjectOutputStream> serverOpStream = new ConcurrentHashMap<String, ObjectOutputStream>();
-		private ObjectOutputStream opStream = null;
-		private ObjectInputStream inStream = null;
+		private ServerSession session;
+		private OutputStream opStream = null;
+		private InputStream inStream = null;
 
     public Handler(
 			Socket connection, 
@@ -508,11 +573,9 @@ public class Server extends Thread{
 			this.server = hostPeer;
 			this.client = null;
 			this.handShake = null;
-			this.actMsg = null;
+			this.actMsg = new ActualMsg();
+			this.session = null;
 			this.connection = connection;
-			this.serverConnMap = sysInfo.getServerConnMap();
-			this.actMsgMap = sysInfo.getServerActMsgMap();
-			this.serverOpStream = sysInfo.getServerOpStream();
     }
 
     public void run() {
@@ -523,8 +586,8 @@ public class Server extends Thread{
 			 * 3. Build InterestingList by interest messages
 			 */
  			try {
-				opStream = new ObjectOutputStream(connection.getOutputStream());
-				inStream = new ObjectInputStream(connection.getInputStream());
+				opStream = this.actMsg.openOutput(connection);
+				inStream = this.actMsg.openInput(connection.getInputStream());
 
 				if(this.handShake == null) {	
 					this.handShake = new HandShake();
@@ -544,42 +607,16 @@ public class Server extends Thread{
 					}
 			 	}
 				
-				/**
-				 * 1. connection
-				 * 2. actual msb obj
-				 * 
-				 * Store them into map for select thread to use it
-				 */
-				this.actMsg = new ActualMsg(this.client);
-				serverConnMap.put(this.client.getId(), this.connection);
-				actMsgMap.put(this.client.getId(), this.actMsg);
-				serverOpStream.put(this.client.getId(), opStream);
-				this.client.setUnComplete();
-				sysInfo.getNeighborMap().put(this.client.getId(), this.client);
-
-				if(serverConnMap.get(this.client.getId()) == null) {
-					throw new CustomExceptions(ErrorCode.missServerConn, "missing connection object, recreate the socket");
-				}
-
-				if(serverOpStream.get(this.client.getId()) == null) {
-					throw new CustomExceptions(ErrorCode.missServerOpStream, "missing opStream, recreate the socket");
-				}
-
-				if(actMsgMap.get(this.client.getId()) == null) {
-					throw new CustomExceptions(ErrorCode.missActMsgObj, "missing actMsgMap, recreate the socket");
-				}
-
-				/**
-				 * this.ownBitfield is set up at FileManager constructor
-				 */
-				this.actMsg.send(opStream, ActualMsg.BITFIELD, fm.getOwnBitfield());
-				logging.logSendBitFieldMsg(this.client);
+				this.actMsg.setInterConnPeer(this.client);
+				TraceRecorder.recordHandshake(true, this.client);
+				this.session = new ServerSession(this.client, this.actMsg, opStream, this.connection);
+				this.session.open();
 				
 				byte msg_type = -1;
 				while(true) {
 					msg_type = actMsg.recv(inStream);
 					if(msg_type != -1) {
-						boolean isComplete = reactions(msg_type);
+						boolean isComplete = this.session.reactions(msg_type);
 						if(isComplete) {
 							// jump to close connections with client
 							break;
@@ -595,31 +632,28 @@ public class Server extends Thread{
 			catch(EOFException e) {
 				String peerId = this.client != null ? this.client.getId() : "";
 				logging.writeLog("(Server handler thread) client closed the connection, peerId:" + peerId);
-				if(this.client != null) {
-					logging.writeLog("(server handler thread) EOFException, " + this.client.getId() + " isComplete");
-					this.client.setIsComplete();
-					sysInfo.getNeighborMap().put(this.client.getId(), this.client);
-					removePeerFromMap();
+				if(this.session != null) {
+					this.session.onPeerClosed();
 				}
 			}
 			catch(IOException e){
 				String peerId = this.client != null ? this.client.getId() : "";
 				String trace = Tools.getStackTrace(e);
 				logging.writeLog("severe", "(Server handler thread) IOException with client " + peerId + ", ex:" + trace);
-				if(this.client != null) {
-					removePeerFromMap();
+				if(this.session != null) {
+					this.session.removePeerFromMap();
 				}
 			}
 			finally {
 				try{
-					if(this.client != null) {
+					if(this.session != null) {
 						logging.writeLog(
 							"(Server handler thread) " + this.client.getId() + " connection closing, connection handler with client"
 						);
-						removePeerFromMap();
+						this.session.removePeerFromMap();
 					}
-					this.inStream.close();
-					this.opStream.close();
+					if(this.inStream != null) this.inStream.close();
+					if(this.opStream != null) this.opStream.close();
 					this.connection.close();
 				}
 				catch(IOException e){
@@ -630,112 +664,5 @@ public class Server extends Thread{
 			}
 			return;
 		}
-
-		/**
-		 * Reaction of Server receiving the msg, base on the msg type 
-		 * @param msg_type
-		 * @return
-		 * @throws IOException
-		 */
-		private boolean reactions(byte msg_type) throws IOException {
-			if(msg_type == ActualMsg.INTERESTED) {
-				logging.logReceiveInterestMsg(this.client);
-				setNeighborIntStatus(this.client.getId(), true);
-			}
-			else if(msg_type == ActualMsg.NOTINTERESTED) {
-				logging.logReceiveNotInterestMsg(this.client);
-				setNeighborIntStatus(this.client.getId(), false);
-			}
-			else if(msg_type == ActualMsg.REQUEST) {
-				/**
-				 * Send back the request piece, if peer is unchoke
-				 * 1. read block
-				 * 2. send 
-				 */
-				logging.logReceiveRequestMsg(this.client);
-				if(sysInfo.getChokingMap().get(this.client.getId()) != null) {
-					logging.writeLog(this.client.getId() + " is choked, unable to response to peace");
-					return false;
-				}
-				
-				int blockIdx = this.actMsg.shortMsg.getBlockIdx();
-				int blockLen = fm.getBlockSize(blockIdx);
-				byte[] data = new byte[blockLen];
-				fm.read(blockIdx, data, blockLen);
-
-				this.actMsg.send(
-					opStream, 
-					ActualMsg.PIECE, 
-					blockIdx, 
-					data
-				);
-			}
-			else if(msg_type == ActualMsg.COMPLETE) {
-				logging.logReceiveCompleteMsg(this.client);
-				/**
-				 * 1. Notify client is complete
-				 * 2. Send back response complete
-				 */
-				logging.writeLog("(server handler) notify that peer " + this.client.getId() + " isComplete");
-				this.actMsg.send(
-					opStream, 
-					ActualMsg.COMPLETE, 
-					0
-				);
-				this.client.setIsComplete();
-				sysInfo.getNeighborMap().put(this.client.getId(), this.client);
-				return true;
-			}
-			return false;
-		}
-		
-		/**
-		 * Change the neighbor peer's isInterested status in neighborMap.
-		 * @param peerId
-		 * @param status
-		 */
-		private synchronized void setNeighborIntStatus(String peerId, boolean status) {
-			Peer p = sysInfo.getNeighborMap().get(peerId);
-			p.setIsInterested(status);
-			sysInfo.getNeighborMap().put(peerId, p);
-
-			Peer check = sysInfo.getNeighborMap().get(this.client.getId());
-			logging.writeLog(
-				"check neighbor " + this.client.getId() + ", isInterested status: " + check.getIsInterested());
-		}
-		
-		private void removePeerFromMap() {
-			setNeighborIntStatus(this.client.getId(), false);
-			if(sysInfo.getInterestMap().get(this.client.getId()) != null) {
-				sysInfo.getInterestMap().remove(this.client.getId());
-			}
-			if(sysInfo.getChokingMap().get(this.client.getId()) != null) {
-				sysInfo.getChokingMap().remove(this.client.getId());
-			}
-			if(sysInfo.getUnChokingMap().get(this.client.getId()) != null) {
-				sysInfo.getUnChokingMap().remove(this.client.getId());
-			}
-			if(sysInfo.getServerActMsgMap().get(this.client.getId()) != null) {
-				sysInfo.getServerActMsgMap().remove(this.client.getId());
-			}
-			if(sysInfo.getServerOpStream().get(this.client.getId()) != null) {
-				try {
-					sysInfo.getServerOpStream().get(this.client.getId()).close();
-				}
-				catch(IOException e) {
-
-				}
-				sysInfo.getServerOpStream().remove(this.client.getId());
-			}
-			if(sysInfo.getServerConnMap().get(this.client.getId()) != null) {
-				try {
-					sysInfo.getServerConnMap().get(this.client.getId()).close();
-				}
-				catch(IOException e) {
-					
-				}
-				sysInfo.getServerConnMap().remove(this.client.getId());
-			}
-		}
   }
 }
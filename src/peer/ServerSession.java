@@ -0,0 +1,203 @@
+package peer;
+
+import java.net.*;
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import utils.CustomExceptions;
+import utils.ErrorCode;
+import utils.LogHandler;
+
+/**
+ * Server side of one connection after the handshake succeeded.
+ * Registers the client peer, sends the bitfield and reacts to the client's msgs.
+ *
+ * Shared by Server.Handler (thread per connection) and NioServer (event loop),
+ * the caller owns reading msgs and closing the connection.
+ */
+class ServerSession {
+	private Socket connection;
+	private Peer client;
+	private ActualMsg actMsg;
+	private OutputStream opStream;
+
+	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
+	private static FileManager fm = FileManager.getInstance();
+	private static LogHandler logging = new LogHandler();
+
+	ServerSession(Peer client, ActualMsg actMsg, OutputStream opStream, Socket connection) {
+		this.client = client;
+		this.actMsg = actMsg;
+		this.opStream = opStream;
+		this.connection = connection;
+	}
+
+	Peer getClient() {
+		return this.client;
+	}
+
+	ActualMsg getActMsg() {
+		return this.actMsg;
+	}
+
+	/**
+	 * 1. connection
+	 * 2. actual msb obj
+	 *
+	 * Store them into map for select thread to use it, then send BitField Msg to client
+	 */
+	void open() throws IOException, CustomExceptions {
+		ConcurrentHashMap<String, Socket> serverConnMap = sysInfo.getServerConnMap();
+		ConcurrentHashMap<String, ActualMsg> actMsgMap = sysInfo.getServerActMsgMap();
+		ConcurrentHashMap<String, OutputStream> serverOpStream = sysInfo.getServerOpStream();
+
+		// a new connection starts choked, also when the peer reconnects (restarted, resumed download),
+		// before the selection tasks can see its connection
+		sysInfo.setChoked(this.client);
+		serverConnMap.put(this.client.getId(), this.connection);
+		actMsgMap.put(this.client.getId(), this.actMsg);
+		serverOpStream.put(this.client.getId(), this.opStream);
+		this.client.setUnComplete();
+		sysInfo.getNeighborMap().put(this.client.getId(), this.client);
+
+		if(serverConnMap.get(this.client.getId()) == null) {
+			throw new CustomExceptions(ErrorCode.missServerConn, "missing connection object, recreate the socket");
+		}
+
+		if(serverOpStream.get(this.client.getId()) == null) {
+			throw new CustomExceptions(ErrorCode.missServerOpStream, "missing opStream, recreate the socket");
+		}
+
+		if(actMsgMap.get(this.client.getId()) == null) {
+			throw new CustomExceptions(ErrorCode.missActMsgObj, "missing actMsgMap, recreate the socket");
+		}
+
+		/**
+		 * this.ownBitfield is set up at FileManager constructor
+		 */
+		this.actMsg.send(this.opStream, ActualMsg.BITFIELD, fm.getOwnBitfield());
+		logging.logSendBitFieldMsg(this.client);
+	}
+
+	/**
+	 * Reaction of Server receiving the msg, base on the msg type
+	 * @param msg_type
+	 * @return true -> client is complete, close the connection
+	 * @throws IOException
+	 */
+	boolean reactions(byte msg_type) throws IOException {
+		if(msg_type == ActualMsg.INTERESTED) {
+			logging.logReceiveInterestMsg(this.client);
+			boolean wasInterested = setNeighborIntStatus(this.client.getId(), true);
+			// a new candidate, don't wait for the next PreferSelect tick
+			if(!wasInterested) Server.triggerRechoke();
+		}
+		else if(msg_type == ActualMsg.NOTINTERESTED) {
+			logging.logReceiveNotInterestMsg(this.client);
+			boolean wasInterested = setNeighborIntStatus(this.client.getId(), false);
+			// its preferred slot is free
+			if(wasInterested) Server.triggerRechoke();
+		}
+		else if(msg_type == ActualMsg.REQUEST) {
+			/**
+			 * Send back the request piece, if peer is unchoke
+			 * 1. read block
+			 * 2. send
+			 * With the nio engine this runs on the event loop thread: the piece is read
+			 * from the file (ZeroCopyUpload off) or moved by transferTo when the socket
+			 * is writable (on), either way on the loop. A page cache miss stalls every
+			 * connection of the loop, use more ServerEventLoops for files larger than memory.
+			 */
+			logging.logReceiveRequestMsg(this.client);
+			if(this.client.getIsChoking()) {
+				logging.writeLog(this.client.getId() + " is choked, unable to response to peace");
+				return false;
+			}
+
+			int blockIdx = this.actMsg.shortMsg.getBlockIdx();
+			this.actMsg.sendFileBlock(
+				this.opStream,
+				fm,
+				blockIdx
+			);
+			this.client.getUploadMeter().add(fm.getBlockSize(blockIdx));
+		}
+		else if(msg_type == ActualMsg.CANCEL) {
+			// requests are served as soon as they are read, nothing is queued to withdraw,
+			// the client drops the piece if it still arrives
+			logging.writeLogf("(server handler) %s cancel block %s", this.client.getId(), this.actMsg.shortMsg.getBlockIdx());
+		}
+		else if(msg_type == ActualMsg.COMPLETE) {
+			logging.logReceiveCompleteMsg(this.client);
+			/**
+			 * 1. Notify client is complete
+			 * 2. Send back response complete
+			 */
+			logging.writeLog("(server handler) notify that peer " + this.client.getId() + " isComplete");
+			this.actMsg.send(
+				this.opStream,
+				ActualMsg.COMPLETE,
+				0
+			);
+			this.client.setIsComplete();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Client closed the connection, it won't need more pieces
+	 */
+	void onPeerClosed() {
+		logging.writeLog("(server handler thread) EOFException, " + this.client.getId() + " isComplete");
+		this.client.setIsComplete();
+		removePeerFromMap();
+		Server.triggerRechoke();
+	}
+
+	/**
+	 * Change the neighbor peer's isInterested status in neighborMap.
+	 * @param peerId
+	 * @param status
+	 * @return previous status
+	 */
+	private boolean setNeighborIntStatus(String peerId, boolean status) {
+		Peer p = sysInfo.getNeighborMap().get(peerId);
+		boolean previous = p.setIsInterested(status);
+		logging.writeLog(
+			"check neighbor " + peerId + ", isInterested status: " + p.getIsInterested());
+		return previous;
+	}
+
+	void removePeerFromMap() {
+		setNeighborIntStatus(this.client.getId(), false);
+		// concurrent maps, removing an absent key is a no-op
+		sysInfo.getInterestMap().remove(this.client.getId());
+		sysInfo.removeChokeState(this.client);
+		// the have set comes on the client connection, it may still be downloading from the peer
+		if(fm != null && sysInfo.getClientConnMap().get(this.client.getId()) == null) {
+			fm.removePeer(this.client.getId());
+		}
+		if(sysInfo.getServerActMsgMap().get(this.client.getId()) != null) {
+			sysInfo.getServerActMsgMap().remove(this.client.getId());
+		}
+		if(sysInfo.getServerOpStream().get(this.client.getId()) != null) {
+			try {
+				sysInfo.getServerOpStream().get(this.client.getId()).close();
+			}
+			catch(IOException e) {
+
+			}
+			sysInfo.getServerOpStream().remove(this.client.getId());
+		}
+		if(sysInfo.getServerConnMap().get(this.client.getId()) != null) {
+			try {
+				sysInfo.getServerConnMap().get(this.client.getId()).close();
+			}
+			catch(IOException e) {
+
+			}
+			sysInfo.getServerConnMap().remove(this.client.getId());
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package peer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where FileManager keeps the file bytes.
+ *
+ * - raf: RandomAccessFile, positional FileChannel read/write without lock
+ * - mmap: the file is mapped in segments, blocks are copied from/to the mapping
+ *   without lock or syscall
+ *
+ * Select it with "StorageBackend" in Common.cfg. Reads and writes of different
+ * blocks may run concurrently.
+ */
+interface StorageBackend {
+
+	/**
+	 * Open the storage of the host peer's file
+	 * @param truncate true to replace an existing file with an empty one of fileLength
+	 */
+	static StorageBackend open(String fileName, long fileLength, boolean truncate) throws IOException {
+		if("mmap".equals(SystemInfo.getSingletonObj().getStorageBackend())) {
+			return new MmapStorage(fileName, fileLength, truncate);
+		}
+		return new RafStorage(fileName, fileLength, truncate);
+	}
+
+	/**
+	 * Read len bytes at position of file into b[off]
+	 */
+	void read(long position, byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Write len bytes of b[off] at position of file
+	 */
+	void write(long position, byte[] b, int off, int len) throws IOException;
+
+	/**
+	 * Write the remaining bytes of srcs one after another from position of file,
+	 * the adjacent blocks coalesced by the disk writer. Heap buffers only.
+	 */
+	default void write(long position, ByteBuffer[] srcs) throws IOException {
+		for(ByteBuffer src: srcs) {
+			int len = src.remaining();
+			write(position, src.array(), src.arrayOffset() + src.position(), len);
+			src.position(src.limit());
+			position += len;
+		}
+	}
+
+	/**
+	 * Channel of the file, for positional transfers (zero-copy upload)
+	 */
+	FileChannel getChannel();
+
+	void close() throws IOException;
+}
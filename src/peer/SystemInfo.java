@@ -2,14 +2,13 @@ package peer;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Timer;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import utils.CustomExceptions;
 import utils.ErrorCode;
@@ -19,7 +18,6 @@ import utils.ErrorCode;
  */
 public final class SystemInfo {
   private boolean isDebugMode = true;
-  private final ReentrantLock lock = new ReentrantLock();
   private static SystemInfo singletonObj = null;
 
   private static int retryLimit = 10;
@@ -38,32 +36,36 @@ public final class SystemInfo {
   private Peer host;
   private boolean isNeighborsComplete;
   private ServerSocket serverListener;
-  private Timer PreferSelectTimer;
-  private Timer OptSelectTimer;
-  private Timer isSystemCompleteTimer;
-  private HashMap<String, Peer> neighborMap = new HashMap<String, Peer>();
+  /**
+   * Peer registry, Handler / Client threads and the Scheduler tasks all use it - use ConcurrentHashMap.
+   * A peer is in chokingMap or unChokingMap, move it with setChoked / setUnchoked only.
+   * Iterate a snapshot (getNeighborSnapshot) in the selection tasks.
+   */
+  private final ConcurrentHashMap<String, Peer> neighborMap = new ConcurrentHashMap<String, Peer>();
   /**
    * Maps for Preferred Selection
    */
-  private HashMap<String, Peer> interestMap = new HashMap<String, Peer>();
-  private HashMap<String, Peer> unChokingMap = new HashMap<String, Peer>();
-  private HashMap<String, Peer> chokingMap = new HashMap<String, Peer>();
+  private final ConcurrentHashMap<String, Peer> interestMap = new ConcurrentHashMap<String, Peer>();
+  private final ConcurrentHashMap<String, Peer> unChokingMap = new ConcurrentHashMap<String, Peer>();
+  private final ConcurrentHashMap<String, Peer> chokingMap = new ConcurrentHashMap<String, Peer>();
+  // guards the choking flag of the peers together with the two maps above
+  private final Object chokeLock = new Object();
 
   /**
    * Map for Optimistical Select
    */
-  private Peer optUnchokingPeer = new Peer();
+  private volatile Peer optUnchokingPeer = new Peer();
 
   // Multiple handlers will modify and get this object - use ConcurrentHashMap
   private ConcurrentHashMap<String, Socket> serverConnMap = new ConcurrentHashMap<String, Socket>();
-  private ConcurrentHashMap<String, ObjectOutputStream> serverOpStream = new ConcurrentHashMap<String, ObjectOutputStream>();
+  private ConcurrentHashMap<String, OutputStream> serverOpStream = new ConcurrentHashMap<String, OutputStream>();
 	private ConcurrentHashMap<String, ActualMsg> serverActMsgMap = new ConcurrentHashMap<String, ActualMsg>();
-  private List<Integer> blockList  = new ArrayList<Integer>();
-  private List<Integer> newObtainBlocks = Collections.synchronizedList(blockList);
+  // Clients add, the Server drains - poll() never loses a block added during the drain
+  private ConcurrentLinkedQueue<Integer> newObtainBlocks = new ConcurrentLinkedQueue<Integer>();
 
   // Multiple clients will modify and get this object - use ConcurrentHashMap
   private ConcurrentHashMap<String, Socket> clientConnMap = new ConcurrentHashMap<String, Socket>();
-  private ConcurrentHashMap<String, ObjectOutputStream> clientOpStream = new ConcurrentHashMap<String, ObjectOutputStream>();
+  private ConcurrentHashMap<String, OutputStream> clientOpStream = new ConcurrentHashMap<String, OutputStream>();
   private ConcurrentHashMap<String, ActualMsg> clientActMsgMap = new ConcurrentHashMap<String, ActualMsg>();
   private ConcurrentHashMap<String, Boolean> isClientCompleteMap = new ConcurrentHashMap<String, Boolean>();
 
@@ -75,8 +77,46 @@ public final class SystemInfo {
   private int unChokingInr;
   private int optUnchokingInr;
   private String fileName;
-  private int fileSize;
+  private long fileSize;
   private int filePieceSize;
+
+  /**
+   * Optional system parameters, read by name from Common.cfg
+   * - MessageCodec: binary (project description format) | object (legacy java serialization)
+   * - RequestPipelineDepth: max outstanding requests per connection
+   * - ServerEngine: thread (a Handler thread per connection) | nio (selector event loops)
+   * - ServerEventLoops: number of event loop threads of the nio engine
+   * - ThreadMode: platform | virtual, threads running Client and Server.Handler
+   * - ZeroCopyUpload: send pieces by FileChannel.transferTo (binary codec only)
+   * - StorageBackend: raf (RandomAccessFile) | mmap (memory-mapped segments)
+   * - VerifyPieces: check received pieces against [FileName].sha256
+   * - HashThreads: size of the piece hashing thread pool (received pieces, piece hashes, resume recheck)
+   * - ResumeDownload: leechers checkpoint their bitfield and continue after a restart
+   * - CheckpointInterval: seconds between checkpoints
+   * - RandomFirstPieces: pieces picked at random before rarest first
+   * - WriteQueueSize: pieces queued on the disk writer thread, 0 writes on the receiving thread
+   * - ChokingPolicy: titfortat (download / upload rate, anti-snubbing) | legacy (download rate, random when seeding)
+   * - DebugLog: write the FINE records of the debug log
+   * - TraceEvents: record the protocol events to [peer dir]/trace.bin, see TraceRecorder
+   * - MetricsPortOffset: metrics text endpoint on 127.0.0.1:(peer port + offset), 0 = off
+   */
+  private String msgCodec = "binary";
+  private int requestPipelineDepth = 5;
+  private String serverEngine = "thread";
+  private int serverEventLoops = 2;
+  private String threadMode = "platform";
+  private boolean zeroCopyUpload = true;
+  private String storageBackend = "raf";
+  private boolean verifyPieces = true;
+  private int hashThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private boolean resumeDownload = true;
+  private int checkpointInterval = 10;
+  private int randomFirstPieces = 4;
+  private int writeQueueSize = 64;
+  private String chokingPolicy = "titfortat";
+  private boolean debugLog = true;
+  private boolean traceEvents = false;
+  private int metricsPortOffset = 0;
   
   /**
    * Initialize peer's System infos
@@ -88,12 +128,9 @@ public final class SystemInfo {
     singletonObj.initHostPeer(host);
     singletonObj.initNeighborMap(neighborMap);
     singletonObj.isNeighborsComplete = false;
-    singletonObj.PreferSelectTimer = new Timer();
-    singletonObj.OptSelectTimer = new Timer();
-    singletonObj.isSystemCompleteTimer = new Timer();
   }
 
-  public SystemInfo(List<String> SystemInfoList) {
+  public SystemInfo(List<String> SystemInfoList, HashMap<String, String> optionalParams) {
     /**
     * Read and store the system infos, written in Common.cfg by sequences.
     *
@@ -105,6 +142,7 @@ public final class SystemInfo {
     * PieceSize 16384
     */
     singletonObj.initSystemParam(SystemInfoList);
+    singletonObj.initOptionalParam(optionalParams);
   }
 
   public static SystemInfo getSingletonObj() {
@@ -131,11 +169,22 @@ public final class SystemInfo {
   }
 
   public void initServerListener() throws IOException {
-    this.serverListener = new ServerSocket(host.getPort());
+    // open from a channel, accepted sockets then have channels for zero-copy upload
+    ServerSocketChannel listener = ServerSocketChannel.open();
+    listener.bind(new InetSocketAddress(host.getPort()));
+    this.serverListener = listener.socket();
+  }
+
+  /**
+   * Server listener opened by the server engine itself (NioServer)
+   */
+  public void initServerListener(ServerSocket listener) {
+    this.serverListener = listener;
   }
 
   public void initNeighborMap(HashMap<String, Peer> neighborMap) {
-    this.neighborMap = neighborMap;
+    this.neighborMap.clear();
+    this.neighborMap.putAll(neighborMap);
   }
   
   public void initDebugMode(boolean debug) {
@@ -148,7 +197,7 @@ public final class SystemInfo {
       this.unChokingInr = Integer.parseInt(SystemInfoList.get(1));
       this.optUnchokingInr = Integer.parseInt(SystemInfoList.get(2));
       this.fileName = SystemInfoList.get(3);
-      this.fileSize = Integer.parseInt(SystemInfoList.get(4));
+      this.fileSize = Long.parseLong(SystemInfoList.get(4));
       this.filePieceSize = Integer.parseInt(SystemInfoList.get(5));
     }
     catch(Exception e) {
@@ -156,14 +205,119 @@ public final class SystemInfo {
     }
   }
 
+  public void initOptionalParam(HashMap<String, String> optionalParams) {
+    try {
+      if(optionalParams.get("MessageCodec") != null) {
+        this.msgCodec = optionalParams.get("MessageCodec");
+      }
+      if(optionalParams.get("RequestPipelineDepth") != null) {
+        this.requestPipelineDepth = Math.max(1, Integer.parseInt(optionalParams.get("RequestPipelineDepth")));
+      }
+      if(optionalParams.get("ServerEngine") != null) {
+        this.serverEngine = optionalParams.get("ServerEngine");
+      }
+      if(optionalParams.get("ServerEventLoops") != null) {
+        this.serverEventLoops = Math.max(1, Integer.parseInt(optionalParams.get("ServerEventLoops")));
+      }
+      if(optionalParams.get("ThreadMode") != null) {
+        this.threadMode = optionalParams.get("ThreadMode");
+      }
+      if(optionalParams.get("ZeroCopyUpload") != null) {
+        this.zeroCopyUpload = Boolean.parseBoolean(optionalParams.get("ZeroCopyUpload"));
+      }
+      if(optionalParams.get("StorageBackend") != null) {
+        this.storageBackend = optionalParams.get("StorageBackend");
+      }
+      if(optionalParams.get("VerifyPieces") != null) {
+        this.verifyPieces = Boolean.parseBoolean(optionalParams.get("VerifyPieces"));
+      }
+      if(optionalParams.get("HashThreads") != null) {
+        this.hashThreads = Math.max(1, Integer.parseInt(optionalParams.get("HashThreads")));
+      }
+      if(optionalParams.get("ResumeDownload") != null) {
+        this.resumeDownload = Boolean.parseBoolean(optionalParams.get("ResumeDownload"));
+      }
+      if(optionalParams.get("CheckpointInterval") != null) {
+        this.checkpointInterval = Math.max(1, Integer.parseInt(optionalParams.get("CheckpointInterval")));
+      }
+      if(optionalParams.get("RandomFirstPieces") != null) {
+        this.randomFirstPieces = Math.max(0, Integer.parseInt(optionalParams.get("RandomFirstPieces")));
+      }
+      if(optionalParams.get("WriteQueueSize") != null) {
+        this.writeQueueSize = Math.max(0, Integer.parseInt(optionalParams.get("WriteQueueSize")));
+      }
+      if(optionalParams.get("ChokingPolicy") != null) {
+        this.chokingPolicy = optionalParams.get("ChokingPolicy");
+      }
+      if(optionalParams.get("DebugLog") != null) {
+        this.debugLog = Boolean.parseBoolean(optionalParams.get("DebugLog"));
+      }
+      if(optionalParams.get("TraceEvents") != null) {
+        this.traceEvents = Boolean.parseBoolean(optionalParams.get("TraceEvents"));
+      }
+      if(optionalParams.get("MetricsPortOffset") != null) {
+        this.metricsPortOffset = Integer.parseInt(optionalParams.get("MetricsPortOffset"));
+      }
+    }
+    catch(Exception e) {
+      e.printStackTrace();
+    }
+  }
+
   public void initChokingMap() {
     for(Entry<String, Peer> n: this.neighborMap.entrySet()) {
       if(!n.getValue().getHasFile()) {
-        this.chokingMap.put(n.getKey(), n.getValue());
+        setChoked(n.getValue());
       }
     }
   }
 
+  /**
+   * Choke the peer. The choking flag of the Peer decides, chokingMap and
+   * unChokingMap follow it under chokeLock, so a peer is always in exactly one of them.
+   * @return true if the peer was unchoked, CHOKE is to be sent
+   */
+  public boolean setChoked(Peer p) {
+    synchronized(this.chokeLock) {
+      boolean wasChoking = p.setChoking();
+      this.chokingMap.put(p.getId(), p);
+      this.unChokingMap.remove(p.getId());
+      return !wasChoking;
+    }
+  }
+
+  /**
+   * Unchoke the peer, call it before sending UNCHOKE
+   * @return true if the peer was choked, UNCHOKE is to be sent
+   */
+  public boolean setUnchoked(Peer p) {
+    synchronized(this.chokeLock) {
+      boolean wasChoking = p.setUnChoking();
+      this.unChokingMap.put(p.getId(), p);
+      this.chokingMap.remove(p.getId());
+      return wasChoking;
+    }
+  }
+
+  /**
+   * The connection of the peer is closed, drop it from both maps,
+   * it stays choked until the next connection unchokes it
+   */
+  public void removeChokeState(Peer p) {
+    synchronized(this.chokeLock) {
+      p.setChoking();
+      this.chokingMap.remove(p.getId());
+      this.unChokingMap.remove(p.getId());
+    }
+  }
+
+  /**
+   * @return a copy of the neighbors, for iterating in the selection tasks
+   */
+  public List<Peer> getNeighborSnapshot() {
+    return new ArrayList<Peer>(this.neighborMap.values());
+  }
+
   /**
    * Receive piece, add to new obtain blocks list
    * @param blockIdx
@@ -203,56 +357,20 @@ public final class SystemInfo {
     return this.isNeighborsComplete;
   }
 
-  public Timer getIsSystemCompleteTimer() {
-    return this.isSystemCompleteTimer;
+  public ConcurrentHashMap<String, Peer> getNeighborMap() {
+    return this.neighborMap;
   }
 
-  public Timer getPreferSelectTimer() {
-    return this.PreferSelectTimer;
+  public ConcurrentHashMap<String, Peer> getInterestMap() {
+    return this.interestMap;
   }
 
-  public Timer getOptSelectTimer() {
-    return this.OptSelectTimer;
+  public ConcurrentHashMap<String, Peer> getUnChokingMap() {
+    return this.unChokingMap;
   }
 
-  public HashMap<String, Peer> getNeighborMap() {
-    this.lock.lock();
-		try{
-      return this.neighborMap;
-		}
-		finally{
-			this.lock.unlock();
-		}
-  }
-
-  public HashMap<String, Peer> getInterestMap() {
-    this.lock.lock();
-		try{
-      return this.interestMap;
-		}
-		finally{
-			this.lock.unlock();
-		}
-  }
-
-  public HashMap<String, Peer> getUnChokingMap() {
-    this.lock.lock();
-		try{
-      return this.unChokingMap;
-		}
-		finally{
-			this.lock.unlock();
-		}
-  }
-
-  public HashMap<String, Peer> getChokingMap() {
-    this.lock.lock();
-		try{
-      return this.chokingMap;
-		}
-		finally{
-			this.lock.unlock();
-		}
+  public ConcurrentHashMap<String, Peer> getChokingMap() {
+    return this.chokingMap;
   }
   
   public Peer getOptUnchokingPeer() {
@@ -263,7 +381,7 @@ public final class SystemInfo {
     return this.serverConnMap;
   }
 
-  public ConcurrentHashMap<String, ObjectOutputStream> getServerOpStream() {
+  public ConcurrentHashMap<String, OutputStream> getServerOpStream() {
     return this.serverOpStream;
   }
 
@@ -275,7 +393,7 @@ public final class SystemInfo {
     return this.clientConnMap;
   }
 
-  public ConcurrentHashMap<String, ObjectOutputStream> getClientOpStream() {
+  public ConcurrentHashMap<String, OutputStream> getClientOpStream() {
     return this.clientOpStream;
   }
 
@@ -287,21 +405,16 @@ public final class SystemInfo {
     return this.isClientCompleteMap;
   }
   /**
-   * 1. Copy newObtainBlocks with lock.
-   * 2. Clear newObtainBlocks
+   * Drain newObtainBlocks, blocks added meanwhile go to this or the next call
    * @return copyList from newObtainBlocks
    */
   public List<Integer> getNewObtainBlocksCopy() {
-    this.lock.lock();
-		try{
-      List<Integer> copyList = new ArrayList<Integer>();
-      copyList.addAll(this.newObtainBlocks);
-      this.newObtainBlocks.clear();
-      return copyList;
-		}
-		finally{
-			this.lock.unlock();
-		}
+    List<Integer> copyList = new ArrayList<Integer>();
+    Integer blockIdx;
+    while((blockIdx = this.newObtainBlocks.poll()) != null) {
+      copyList.add(blockIdx);
+    }
+    return copyList;
   }
 
   /**
@@ -323,7 +436,7 @@ public final class SystemInfo {
     return this.fileName;
   }
 
-  public int getFileSize() {
+  public long getFileSize() {
     return this.fileSize;
   }
 
@@ -331,6 +444,84 @@ public final class SystemInfo {
     return this.filePieceSize;
   }
 
+  public String getMsgCodec() {
+    return this.msgCodec;
+  }
+
+  public int getRequestPipelineDepth() {
+    return this.requestPipelineDepth;
+  }
+
+  public String getServerEngine() {
+    return this.serverEngine;
+  }
+
+  public int getServerEventLoops() {
+    return this.serverEventLoops;
+  }
+
+  public String getThreadMode() {
+    return this.threadMode;
+  }
+
+  public boolean getZeroCopyUpload() {
+    return this.zeroCopyUpload;
+  }
+
+  public String getStorageBackend() {
+    return this.storageBackend;
+  }
+
+  public boolean getVerifyPieces() {
+    return this.verifyPieces;
+  }
+
+  public int getHashThreads() {
+    return this.hashThreads;
+  }
+
+  public boolean getResumeDownload() {
+    return this.resumeDownload;
+  }
+
+  public int getCheckpointInterval() {
+    return this.checkpointInterval;
+  }
+
+  public int getRandomFirstPieces() {
+    return this.randomFirstPieces;
+  }
+
+  public int getWriteQueueSize() {
+    return this.writeQueueSize;
+  }
+
+  public String getChokingPolicy() {
+    return this.chokingPolicy;
+  }
+
+  public boolean getDebugLog() {
+    return this.debugLog;
+  }
+
+  public boolean getTraceEvents() {
+    return this.traceEvents;
+  }
+
+  public int getMetricsPortOffset() {
+    return this.metricsPortOffset;
+  }
+
+  /**
+   * TraceReplay settings: the trace has no piece data, so no hash check,
+   * a fresh scratch file instead of a resumed download, nothing recorded
+   */
+  public void initReplayMode() {
+    this.verifyPieces = false;
+    this.resumeDownload = false;
+    this.traceEvents = false;
+  }
+
   public int getRetryLimit() {
     return SystemInfo.retryLimit;
   }
@@ -0,0 +1,58 @@
+package peer;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import utils.LogHandler;
+
+/**
+ * Tit-for-tat choking
+ *
+ * - leeching: the peers sending us the most (download rate) get the preferred
+ *   slots, they get our pieces in return
+ * - seeding: nothing to reciprocate, the peers taking data fastest (upload rate
+ *   achieved to them) get the slots so the file spreads fastest
+ * - anti-snubbing: while leeching, a peer we are interested in which hasn't sent
+ *   a piece for SNUB_TIMEOUT_SEC is snubbed, it gets no preferred slot and can
+ *   only be unchoked optimistically
+ *
+ * Equal rates (no traffic yet) are ordered at random.
+ */
+public class TitForTatChoking implements ChokingPolicy {
+	public static final int SNUB_TIMEOUT_SEC = 60;
+
+	private static FileManager fm = FileManager.getInstance();
+	private static LogHandler logging = new LogHandler();
+	private final Random R = new Random();
+
+	public Set<String> selectPreferred(List<Peer> candidates, int preferN, boolean isSeeding) {
+		// shuffle first, the stable sort keeps ties in random order
+		Collections.shuffle(candidates, R);
+		if(isSeeding) {
+			candidates.sort(Comparator.comparingDouble(Peer::getUploadRate).reversed());
+		}
+		else {
+			candidates.sort(Comparator.comparingDouble(Peer::getDownloadRate).reversed());
+		}
+		Set<String> preferred = new HashSet<String>();
+		long now = System.nanoTime();
+		for(Peer p: candidates) {
+			if(preferred.size() >= preferN) break;
+			if(!isSeeding && isSnubbed(p, now)) {
+				logging.writeLog("PreferSelect " + p.getId() + " is snubbed, no piece for " + SNUB_TIMEOUT_SEC + " sec");
+				continue;
+			}
+			preferred.add(p.getId());
+		}
+		return preferred;
+	}
+
+	private static boolean isSnubbed(Peer p, long now) {
+		if(fm == null || !fm.isInterested(p.getId())) return false;
+		return now - p.getDownloadMeter().getLastActive() > SNUB_TIMEOUT_SEC * 1_000_000_000L;
+	}
+}
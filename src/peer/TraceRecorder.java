@@ -0,0 +1,158 @@
+package peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.LogHandler;
+
+/**
+ * Binary trace of the protocol events of a run, "TraceEvents" in Common.cfg.
+ * TraceReplay feeds a trace back into the reaction logic.
+ *
+ * The file is mapped once (CAPACITY bytes, sparse until written), threads
+ * reserve their record with one getAndAdd and write it without lock, a full
+ * file stops the recording. Layout, big endian:
+ *
+ * header, HEADER_LEN bytes
+ *   0  long  MAGIC
+ *   8  int   VERSION
+ *   12 int   host peer id
+ *   16 long  end of the records, set when the trace is closed, 0 after a crash
+ *   24 long  System.currentTimeMillis() at the start
+ *
+ * record, RECORD_LEN bytes, 8-byte aligned
+ *   0  long  ns since the start
+ *   8  int   peer id of the other side
+ *   12 byte  event, ActualMsg type or HANDSHAKE
+ *   13 byte  flags, SEND / SERVER_SIDE / PAYLOAD
+ *   14 byte  MARK, written last, a record without it is not complete
+ *   15 byte  0
+ *   16 int   block index, -1 if the msg has none
+ *   20 int   msg length (type + payload)
+ *   24       received BITFIELD payload (msg length - 1 bytes, padded to 8) if PAYLOAD
+ *
+ * Peer ids are numeric in PeerInfo.cfg, other ids are recorded as -1.
+ */
+public final class TraceRecorder {
+	static final long MAGIC = 0x5032505452414345L; // "P2PTRACE"
+	static final int VERSION = 1;
+	static final int HEADER_LEN = 32;
+	static final int RECORD_LEN = 24;
+	static final long CAPACITY = 64L << 20;
+
+	static final byte HANDSHAKE = 64;
+	static final byte SEND = 1;
+	static final byte SERVER_SIDE = 1 << 1;
+	static final byte PAYLOAD = 1 << 2;
+	static final byte MARK = 'R';
+
+	private static LogHandler logging = new LogHandler();
+	private static volatile boolean isEnabled = false;
+	private static MappedByteBuffer map = null;
+	private static long startNs;
+	private static final AtomicLong next = new AtomicLong(HEADER_LEN);
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private TraceRecorder() {}
+
+	/**
+	 * Map the trace file and start recording, the file is written again
+	 * @param hostPeerId
+	 */
+	public static synchronized void init(File traceFile, String hostPeerId) {
+		if(isEnabled) return;
+		try(RandomAccessFile raf = new RandomAccessFile(traceFile, "rw")) {
+			raf.setLength(0);
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+		}
+		catch(IOException e) {
+			logging.writeLog("severe", "TraceRecorder init " + traceFile + " failed, ex:" + e);
+			return;
+		}
+		startNs = System.nanoTime();
+		map.putLong(0, MAGIC);
+		map.putInt(8, VERSION);
+		map.putInt(12, toPeerIdx(hostPeerId));
+		map.putLong(16, 0);
+		map.putLong(24, System.currentTimeMillis());
+		isEnabled = true;
+		logging.writeLog("TraceRecorder recording to " + traceFile);
+		Runtime.getRuntime().addShutdownHook(new Thread(TraceRecorder::close, "trace-close"));
+	}
+
+	static boolean isEnabled() {
+		return isEnabled;
+	}
+
+	/**
+	 * Handshake done, the connection starts
+	 */
+	static void recordHandshake(boolean isServerSide, Peer peer) {
+		if(!isEnabled) return;
+		record(HANDSHAKE, isServerSide ? SERVER_SIDE : 0, peer, -1, 0, null);
+	}
+
+	/**
+	 * @param blockIdx -1 if the msg has none
+	 * @param payload  received bitfield, else null
+	 */
+	static void recordRecv(boolean isServerSide, Peer peer, byte type, int blockIdx, int msgLen, byte[] payload) {
+		if(!isEnabled) return;
+		record(type, isServerSide ? SERVER_SIDE : 0, peer, blockIdx, msgLen, payload);
+	}
+
+	/**
+	 * @param blockIdx -1 if the msg has none
+	 */
+	static void recordSend(boolean isServerSide, Peer peer, byte type, int blockIdx, int msgLen) {
+		if(!isEnabled) return;
+		record(type, (byte)(SEND | (isServerSide ? SERVER_SIDE : 0)), peer, blockIdx, msgLen, null);
+	}
+
+	private static void record(byte event, byte flags, Peer peer, int blockIdx, int msgLen, byte[] payload) {
+		long ns = System.nanoTime() - startNs;
+		int payloadLen = payload == null ? 0 : payload.length;
+		int len = RECORD_LEN + ((payloadLen + 7) & ~7);
+		long pos = next.getAndAdd(len);
+		if(pos + len > CAPACITY) {
+			dropped.incrementAndGet();
+			return;
+		}
+		int p = (int) pos;
+		map.putLong(p, ns);
+		map.putInt(p + 8, peer == null ? -1 : toPeerIdx(peer.getId()));
+		map.put(p + 12, event);
+		map.put(p + 13, payloadLen == 0 ? flags : (byte)(flags | PAYLOAD));
+		map.putInt(p + 16, blockIdx);
+		map.putInt(p + 20, msgLen);
+		if(payloadLen != 0) map.put(p + RECORD_LEN, payload);
+		map.put(p + 14, MARK);
+	}
+
+	static int toPeerIdx(String peerId) {
+		try {
+			return Integer.parseInt(peerId);
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Stop recording, write the end of the records and force the file
+	 */
+	public static synchronized void close() {
+		if(!isEnabled) return;
+		isEnabled = false;
+		long end = Math.min(next.get(), CAPACITY);
+		map.putLong(16, end);
+		map.force();
+		logging.writeLog(String.format(
+			"TraceRecorder closed, %s bytes, %s events dropped (file full)", end, dropped.get()
+		));
+	}
+}
@@ -0,0 +1,240 @@
+package peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import utils.LogHandler;
+import utils.Tools;
+
+/**
+ * Offline replay of a TraceRecorder trace, started by
+ * "java PeerProcess [peerId] replay|replay-paced [trace file]".
+ *
+ * The received msgs go through Client.reactions (client side) and
+ * ServerSession.reactions (server side) of the recorded connections, without
+ * sockets, the msgs they send are dropped. Server CHOKE / UNCHOKE sends are
+ * applied to the choking maps, the timers don't run.
+ *
+ * - piece data is not in the trace, PIECE carries an unspecified BufferPool
+ *   array, PeerProcess turns VerifyPieces off and writes to a scratch file
+ * - replay runs as fast as possible, replay-paced keeps the recorded times
+ * - the time of every reaction is measured, the stats by side and msg type
+ *   are printed at the end
+ *
+ * Picking and timing differ from the recorded run, the requests the reactions
+ * send are not compared with the trace.
+ */
+public final class TraceReplay {
+	private static LogHandler logging = new LogHandler();
+	private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
+	private static final OutputStream SINK = OutputStream.nullOutputStream();
+
+	static final class Event {
+		long ns;
+		int peer;
+		byte type;
+		byte flags;
+		int blockIdx;
+		int msgLen;
+		byte[] payload;
+
+		boolean isSend() {
+			return (this.flags & TraceRecorder.SEND) != 0;
+		}
+
+		boolean isServerSide() {
+			return (this.flags & TraceRecorder.SERVER_SIDE) != 0;
+		}
+	}
+
+	/**
+	 * Reaction time of one side and msg type
+	 */
+	private static final class Stat {
+		long count;
+		long totalNs;
+		long maxNs;
+
+		void add(long ns) {
+			this.count++;
+			this.totalNs += ns;
+			this.maxNs = Math.max(this.maxNs, ns);
+		}
+	}
+
+	private final HashMap<String, Client> clients = new HashMap<String, Client>();
+	private final HashMap<String, ServerSession> sessions = new HashMap<String, ServerSession>();
+	private final Stat[][] stats = new Stat[2][ActualMsg.TYPE_NAMES.length];
+	private long skipped = 0;
+
+	private TraceReplay() {}
+
+	/**
+	 * @param isPaced wait for the recorded time of every event
+	 */
+	public static void replay(File traceFile, boolean isPaced) throws IOException {
+		List<Event> events = read(traceFile);
+		System.out.println(String.format("[%s] replay %s events of %s", sysInfo.getHostPeer().getId(), events.size(), traceFile));
+		new TraceReplay().run(events, isPaced);
+	}
+
+	/**
+	 * Read the complete records of the trace
+	 */
+	static List<Event> read(File traceFile) throws IOException {
+		ArrayList<Event> events = new ArrayList<Event>();
+		try(RandomAccessFile raf = new RandomAccessFile(traceFile, "r")) {
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if(map.limit() < TraceRecorder.HEADER_LEN || map.getLong(0) != TraceRecorder.MAGIC) {
+				throw new IOException("not a trace file: " + traceFile);
+			}
+			if(map.getInt(8) != TraceRecorder.VERSION) {
+				throw new IOException("trace version " + map.getInt(8) + " is not supported");
+			}
+			if(!String.valueOf(map.getInt(12)).equals(sysInfo.getHostPeer().getId())) {
+				logging.writeLog("warning", "TraceReplay trace was recorded by peer " + map.getInt(12));
+			}
+			long end = map.getLong(16);
+			if(end == 0 || end > map.limit()) end = map.limit();
+			int p = TraceRecorder.HEADER_LEN;
+			while(p + TraceRecorder.RECORD_LEN <= end && map.get(p + 14) == TraceRecorder.MARK) {
+				Event e = new Event();
+				e.ns = map.getLong(p);
+				e.peer = map.getInt(p + 8);
+				e.type = map.get(p + 12);
+				e.flags = map.get(p + 13);
+				e.blockIdx = map.getInt(p + 16);
+				e.msgLen = map.getInt(p + 20);
+				int payloadLen = 0;
+				if((e.flags & TraceRecorder.PAYLOAD) != 0) {
+					payloadLen = e.msgLen - 1;
+					if(payloadLen < 0 || p + TraceRecorder.RECORD_LEN + payloadLen > end) break;
+					e.payload = new byte[payloadLen];
+					map.get(p + TraceRecorder.RECORD_LEN, e.payload);
+				}
+				events.add(e);
+				p += TraceRecorder.RECORD_LEN + ((payloadLen + 7) & ~7);
+			}
+		}
+		// reserved in order, written in any order
+		events.sort((a, b) -> Long.compare(a.ns, b.ns));
+		return events;
+	}
+
+	private void run(List<Event> events, boolean isPaced) {
+		long start = System.nanoTime();
+		for(Event e : events) {
+			if(isPaced) {
+				long wait = e.ns - (System.nanoTime() - start);
+				if(wait > 0) {
+					try {
+						Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+					}
+					catch(InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+			try {
+				apply(e);
+			}
+			catch(IOException | RuntimeException ex) {
+				String trace = Tools.getStackTrace(ex);
+				logging.writeLog("warning", "TraceReplay event of peer " + e.peer + " type " + e.type + " failed, ex:" + trace);
+			}
+		}
+		report(events.size(), System.nanoTime() - start);
+	}
+
+	private void apply(Event e) throws IOException {
+		String peerId = String.valueOf(e.peer);
+		Peer peer = sysInfo.getNeighborMap().get(peerId);
+		if(peer == null) {
+			this.skipped++;
+			return;
+		}
+		if(e.type == TraceRecorder.HANDSHAKE) {
+			if(e.isServerSide()) openSession(peer);
+			else openClient(peer);
+			return;
+		}
+		if(e.type < 0 || e.type >= ActualMsg.TYPE_NAMES.length) {
+			this.skipped++;
+			return;
+		}
+		if(e.isSend()) {
+			// the choking decisions of the timers
+			if(e.isServerSide() && e.type == ActualMsg.CHOKE) sysInfo.setChoked(peer);
+			else if(e.isServerSide() && e.type == ActualMsg.UNCHOKE) sysInfo.setUnchoked(peer);
+			return;
+		}
+
+		byte[] payload = e.payload;
+		if(e.type == ActualMsg.PIECE) {
+			payload = BufferPool.getInstance().acquire(e.msgLen - 5);
+		}
+		long t = System.nanoTime();
+		if(e.isServerSide()) {
+			ServerSession session = this.sessions.get(peerId);
+			if(session == null) session = openSession(peer);
+			session.getActMsg().loadReceived(e.type, e.blockIdx, payload, e.msgLen);
+			session.reactions(e.type);
+		}
+		else {
+			Client client = this.clients.get(peerId);
+			if(client == null) client = openClient(peer);
+			client.replay(e.type, e.blockIdx, payload, e.msgLen);
+		}
+		long ns = System.nanoTime() - t;
+		int side = e.isServerSide() ? 1 : 0;
+		if(this.stats[side][e.type] == null) this.stats[side][e.type] = new Stat();
+		this.stats[side][e.type].add(ns);
+	}
+
+	private ServerSession openSession(Peer peer) throws IOException {
+		ActualMsg actMsg = new ActualMsg();
+		actMsg.setInterConnPeer(peer);
+		ServerSession session = new ServerSession(peer, actMsg, actMsg.openOutput(SINK), null);
+		// ServerSession.open without the connection maps and BITFIELD
+		peer.setUnComplete();
+		sysInfo.setChoked(peer);
+		this.sessions.put(peer.getId(), session);
+		return session;
+	}
+
+	private Client openClient(Peer peer) throws IOException {
+		Client client = new Client(peer);
+		client.attachReplay(SINK);
+		this.clients.put(peer.getId(), client);
+		return client;
+	}
+
+	private void report(int eventNum, long elapsedNs) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(
+			"replay done, %s events in %.1f ms, %s skipped (unknown peer or event)%n",
+			eventNum, elapsedNs / 1e6, this.skipped
+		));
+		String[] sides = {"client", "server"};
+		for(int side = 0; side < 2; side++) {
+			for(int type = 0; type < ActualMsg.TYPE_NAMES.length; type++) {
+				Stat s = this.stats[side][type];
+				if(s == null) continue;
+				sb.append(String.format(
+					"  %s %-13s count [%s], reaction avg/max [%.1f/%.1f us]%n",
+					sides[side], ActualMsg.TYPE_NAMES[type], s.count, s.totalNs / (double) s.count / 1e3, s.maxNs / 1e3
+				));
+			}
+		}
+		System.out.print(sb);
+		logging.writeLog(sb.toString());
+	}
+}
@@ -0,0 +1,156 @@
+package utils;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Background writer of the log files, the peer threads only queue records.
+ *
+ * - a record keeps the format and its args, String.format runs on the writer
+ *   thread
+ * - the queue is a bounded ring (ArrayBlockingQueue), a full queue drops FINE
+ *   records (counted, the count is written with the next batch) and makes
+ *   INFO / WARNING / SEVERE wait, the project log stays complete
+ * - the writer drains up to BATCH records, writes them to the debug, info and
+ *   error files by level and flushes every file once per batch
+ * - a shutdown hook writes what is still queued when the process exits
+ *
+ * Line format is the one of the former java.util.logging SimpleFormatter:
+ * [date time] [LEVEL] [logger name] msg
+ */
+final class AsyncLogWriter implements Runnable {
+  private static final int BATCH = 256;
+  private static final String LINE_FORMAT = "[%1$tF %1$tT] [%2$s] [%3$s] %4$s %n";
+
+  static final class Record {
+    final Level level;
+    final long millis;
+    final String prefix;
+    final String format;
+    final Object[] args;
+
+    /**
+     * @param prefix put in front of the msg, may be null
+     * @param args   null or empty, format is the msg as it is
+     */
+    Record(Level level, String prefix, String format, Object[] args) {
+      this.level = level;
+      this.millis = System.currentTimeMillis();
+      this.prefix = prefix;
+      this.format = format;
+      this.args = args;
+    }
+
+    String getMessage() {
+      String msg = this.args == null || this.args.length == 0 ? this.format : String.format(this.format, this.args);
+      return this.prefix == null ? msg : this.prefix + msg;
+    }
+  }
+
+  private final String name;
+  private final ArrayBlockingQueue<Record> queue;
+  private final Writer debugLog;
+  private final Writer infoLog;
+  private final Writer errorLog;
+  private final AtomicLong dropped = new AtomicLong();
+  private final ArrayList<Record> batch = new ArrayList<Record>(BATCH);
+
+  /**
+   * @param name logger name written on every line
+   */
+  AsyncLogWriter(String name, int capacity, String debugLogPath, String infoLogPath, String errorLogPath) throws IOException {
+    this.name = name;
+    this.queue = new ArrayBlockingQueue<Record>(capacity);
+    this.debugLog = open(debugLogPath);
+    this.infoLog = open(infoLogPath);
+    this.errorLog = open(errorLogPath);
+
+    Thread t = new Thread(this, "log-writer");
+    t.setDaemon(true);
+    t.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "log-writer-exit"));
+  }
+
+  private static Writer open(String path) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true)));
+  }
+
+  /**
+   * Queue the record, FINE is dropped if the queue is full
+   */
+  void submit(Record record) {
+    if(this.queue.offer(record)) return;
+    if(record.level.intValue() < Level.INFO.intValue()) {
+      this.dropped.incrementAndGet();
+      return;
+    }
+    try {
+      this.queue.put(record);
+    }
+    catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void run() {
+    while(true) {
+      Record first;
+      try {
+        first = this.queue.take();
+      }
+      catch(InterruptedException e) {
+        return;
+      }
+      write(first);
+    }
+  }
+
+  /**
+   * Write everything queued, on exit
+   */
+  private void drain() {
+    do {
+      write(null);
+    } while(!this.queue.isEmpty());
+  }
+
+  /**
+   * Write first and the records queued behind it, then flush
+   */
+  private synchronized void write(Record first) {
+    if(first != null) this.batch.add(first);
+    this.queue.drainTo(this.batch, BATCH - this.batch.size());
+    try {
+      long lost = this.dropped.getAndSet(0);
+      if(lost != 0) {
+        writeLine(new Record(Level.WARNING, null, "log queue full, dropped %s debug records", new Object[] {lost}));
+      }
+      for(Record r : this.batch) {
+        writeLine(r);
+      }
+      this.debugLog.flush();
+      this.infoLog.flush();
+      this.errorLog.flush();
+    }
+    catch(IOException | RuntimeException e) {
+      e.printStackTrace();
+    }
+    this.batch.clear();
+  }
+
+  private void writeLine(Record r) throws IOException {
+    String line = String.format(LINE_FORMAT, new Date(r.millis), r.level.getLocalizedName(), this.name, r.getMessage());
+    int lvl = r.level.intValue();
+    this.debugLog.write(line);
+    if(lvl >= Level.INFO.intValue()) this.infoLog.write(line);
+    if(lvl >= Level.SEVERE.intValue()) this.errorLog.write(line);
+  }
+}
@@ -3,51 +3,35 @@ package utils;
 import java.io.File;
 import java.io.IOException;
 import java.util.logging.Level;
-import java.util.logging.LogRecord;
-import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 import java.util.stream.Collectors;
 
 import java.util.Date;
-import java.util.logging.FileHandler;
-import java.util.logging.Filter;
 import java.text.SimpleDateFormat;
 
+import peer.BufferPool;
 import peer.Peer;
 import peer.SystemInfo;
 
+/**
+ * Peer logs: debug (every level), info (INFO and above, the project
+ * description log) and error (SEVERE).
+ *
+ * The calling thread checks the level and queues the format with its args,
+ * AsyncLogWriter formats and writes them on its own thread, see there.
+ * FINE records are skipped before anything is built if "DebugLog" in
+ * Common.cfg is false.
+ */
 public final class LogHandler {
+  private static final int QUEUE_SIZE = 8192;
 
-  private FileHandler erroLogFH = null;
-  private FileHandler logFH = null; // Project descriptions log - info level
-  private FileHandler debugLogFH = null; // Debug logs
   private String logDir = System.getProperty("user.dir") + "/log";
 
-  private static Logger logger = null;
+  private static volatile AsyncLogWriter writer = null;
+  private static volatile boolean isFineEnabled = true;
+  // "Peer [id] ", set with the writer
+  private static String peerPrefix = null;
   private static SystemInfo sysInfo = SystemInfo.getSingletonObj();
 
-  static {
-    /*
-    * Set java logging file handler msg format, java default is XML format
-    */
-    System.setProperty(
-      "java.util.logging.SimpleFormatter.format",
-      "[%1$tF %1$tT] [%4$s] [%3$s] %5$s %n"
-    );
-  }
-
-  private static class logFilter implements Filter {
-    private final Level upper;
-    logFilter(final Level upper) {
-      this.upper = upper;
-    }
-    
-    @Override
-    public boolean isLoggable(LogRecord record) {
-        return record.getLevel().intValue() >= upper.intValue();
-    }
-  }
-
   /**
   * Create log files for peer
   */
@@ -66,17 +50,13 @@ public final class LogHandler {
     String debugLogFN = String.format("debug_log_peer_[%s]_[%s].log", sysInfo.getHostPeer().getId(), dateString);
 
     try {
-      this.debugLogFH = new FileHandler(this.logDir + "/" + debugLogFN, true);
-      this.debugLogFH.setFormatter(new SimpleFormatter());
-      
-      this.logFH = new FileHandler(this.logDir + "/" + logFN, true);
-      this.logFH.setFormatter(new SimpleFormatter());
-      this.logFH.setFilter(new logFilter(Level.INFO));
-
-      this.erroLogFH = new FileHandler(this.logDir + "/" + errorLogFN, true);
-      this.erroLogFH.setFormatter(new SimpleFormatter());
-      this.erroLogFH.setFilter(new logFilter(Level.SEVERE));
-
+      writer = new AsyncLogWriter(
+        LogHandler.class.getName(),
+        QUEUE_SIZE,
+        this.logDir + "/" + debugLogFN,
+        this.logDir + "/" + logFN,
+        this.logDir + "/" + errorLogFN
+      );
     } catch (SecurityException e) {  
       e.printStackTrace();
     } catch (IOException e) {  
@@ -86,41 +66,69 @@ public final class LogHandler {
 
   public LogHandler() {
     /** 
-     * Create logs, and adding log handlers
+     * Create logs, once per process
     */
-    if(logger == null) {
-      if(sysInfo.getIsDebugMode()) {
-        this.logDir = "../demo/log/";
+    synchronized(LogHandler.class) {
+      if(writer == null) {
+        if(sysInfo.getIsDebugMode()) {
+          this.logDir = "../demo/log/";
+        }
+        isFineEnabled = sysInfo.getDebugLog();
+        peerPrefix = "Peer [" + sysInfo.getHostPeer().getId() + "] ";
+        createLogFiles();
       }
-      logger = Logger.getLogger(LogHandler.class.getName());
-      logger.setLevel(Level.FINE);
-      createLogFiles();
-      logger.addHandler(this.erroLogFH);
-      logger.addHandler(this.logFH);
-      logger.addHandler(this.debugLogFH);
     }
   }
 
+  /**
+   * @return false if FINE records are skipped, check it before building an expensive msg
+   */
+  public boolean isFineEnabled() {
+    return isFineEnabled;
+  }
+
+  /**
+   * Queue the record, format and args are formatted on the writer thread,
+   * args must not change after the call
+   */
+  private static void log(Level level, String format, Object... args) {
+    submit(level, null, format, args);
+  }
+
+  private static void submit(Level level, String prefix, String format, Object[] args) {
+    if(level == Level.FINE && !isFineEnabled) return;
+    AsyncLogWriter w = writer;
+    if(w == null) return;
+    w.submit(new AsyncLogWriter.Record(level, prefix, format, args));
+  }
+
   /**
   * Custom Messages
   */
   public void writeLog(String msg) {
-    logger.fine(String.format("Peer [%s] %s", sysInfo.getHostPeer().getId(), msg));
+    submit(Level.FINE, peerPrefix, msg, null);
+  }
+
+  /**
+   * FINE msg formatted on the writer thread, nothing is built if FINE is off
+   * @param format String.format format, "Peer [id] " is put in front
+   */
+  public void writeLogf(String format, Object... args) {
+    submit(Level.FINE, peerPrefix, format, args);
   }
 
   public void writeLog(String lvl, String msg) {
-    String hostPeerId = sysInfo.getHostPeer().getId();
     if(lvl == "severe") {
-      logger.severe(String.format("Peer [%s] %s", hostPeerId, msg));
+      submit(Level.SEVERE, peerPrefix, msg, null);
     }
     else if(lvl == "warning") {
-      logger.warning(String.format("Peer [%s] %s", hostPeerId, msg));
+      submit(Level.WARNING, peerPrefix, msg, null);
     }
     else if(lvl == "info") {
-      logger.info(String.format("Peer [%s] %s", hostPeerId, msg));
+      submit(Level.INFO, peerPrefix, msg, null);
     }
     else {
-      logger.fine(String.format("Peer [%s] %s", hostPeerId, msg));
+      submit(Level.FINE, peerPrefix, msg, null);
     }
   }
   
@@ -129,7 +137,7 @@ public final class LogHandler {
    *
    */
   public void logSystemParam() {
-    String msg = String.format(
+    log(Level.FINE,
       "System Params: PreferN [%s], UnChokingInr [%s], OptUnChokingInr [%s], FileName [%s], FileSize [%s], PieceSize [%s]", 
       sysInfo.getPreferN(),
       sysInfo.getUnChokingInr(),
@@ -138,48 +146,62 @@ public final class LogHandler {
       sysInfo.getFileSize(),
       sysInfo.getPieceSize()
     );
-    logger.fine(msg);
+    log(Level.FINE,
+      "Optional Params: MessageCodec [%s], RequestPipelineDepth [%s], ServerEngine [%s], ServerEventLoops [%s], ThreadMode [%s], ZeroCopyUpload [%s], StorageBackend [%s], VerifyPieces [%s], HashThreads [%s], ResumeDownload [%s], CheckpointInterval [%s], RandomFirstPieces [%s], WriteQueueSize [%s], ChokingPolicy [%s], DebugLog [%s], TraceEvents [%s], MetricsPortOffset [%s]",
+      sysInfo.getMsgCodec(),
+      sysInfo.getRequestPipelineDepth(),
+      sysInfo.getServerEngine(),
+      sysInfo.getServerEventLoops(),
+      sysInfo.getThreadMode(),
+      sysInfo.getZeroCopyUpload(),
+      sysInfo.getStorageBackend(),
+      sysInfo.getVerifyPieces(),
+      sysInfo.getHashThreads(),
+      sysInfo.getResumeDownload(),
+      sysInfo.getCheckpointInterval(),
+      sysInfo.getRandomFirstPieces(),
+      sysInfo.getWriteQueueSize(),
+      sysInfo.getChokingPolicy(),
+      sysInfo.getDebugLog(),
+      sysInfo.getTraceEvents(),
+      sysInfo.getMetricsPortOffset()
+    );
   }
 
   /**
   * System Actions
   */
   public void logEstablishPeer() {
-    String msg = String.format("Peer [%s] Start establishing host peer", sysInfo.getHostPeer().getId());
-    logger.fine(msg);
+    log(Level.FINE, "Peer [%s] Start establishing host peer", sysInfo.getHostPeer().getId());
   }
 
   public void logStartServer() {
-    String msg = String.format("Peer [%s] Start server thread", sysInfo.getHostPeer().getId());
-    logger.fine(msg);
+    log(Level.FINE, "Peer [%s] Start server thread", sysInfo.getHostPeer().getId());
   }
 
   public void logStartClient(Peer targetHost) {
-    String msg = String.format(
+    log(Level.FINE,
       "Peer [%s] Start client thread, connecting to [%s]", sysInfo.getHostPeer().getId(), targetHost.getId()
     );
-    logger.fine(msg);
   }
 
   public void logHandShakeSuccess(Peer sender, Peer recv) {
-    String msg = String.format(
+    log(Level.FINE,
       "Peer [%s] set up handshake with [%s] SUCCESS", 
       sender.getId(), 
       recv.getId()
     );
-    logger.fine(msg);
   }
   
   /**
   * Peer action errors
   */
   public void logConnError(Peer client, Peer targetHost) {
-    String msg = String.format("Peer [%s] (client) occurs connection ERROR with Peer [%s], Start retry in [%s] sec", 
+    log(Level.SEVERE, "Peer [%s] (client) occurs connection ERROR with Peer [%s], Start retry in [%s] sec", 
       client.getId(), 
       targetHost.getId(),
       sysInfo.getRetryInterval()
     );
-    logger.severe(msg);
   }
 
   /**
@@ -189,129 +211,153 @@ public final class LogHandler {
   */
   // 1. TCP connection
   public void logStartConn(Peer client, Peer targetHost) {
-    String msg = String.format("Peer [%s] (client) makes a connection to Peer [%s]", client.getId(), targetHost.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] (client) makes a connection to Peer [%s]", client.getId(), targetHost.getId());
   }
   
   // 2. change of preferred neighbors
   public void logChangePrefersPeers() {
     String preferredString = sysInfo.getUnChokingMap().entrySet().stream().map(p->p.getKey()).collect(Collectors.joining(","));
-    String msg = String.format("Peer [%s] has the preferred neighbors [%s]", sysInfo.getHostPeer().getId(), preferredString);
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] has the preferred neighbors [%s]", sysInfo.getHostPeer().getId(), preferredString);
   }
 
   // 3. change of optimistically unchoked neighbor
   public void logChangeOptUnchokedPeer() {
-    String msg = String.format("Peer [%s] has the optimistically unchoked neighbor [%s]", sysInfo.getHostPeer().getId(), sysInfo.getOptUnchokingPeer().getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] has the optimistically unchoked neighbor [%s]", sysInfo.getHostPeer().getId(), sysInfo.getOptUnchokingPeer().getId());
   }
   
   // 4. unchoking
   public void logUnchoking(Peer sender) {
-    String msg = String.format("Peer [%s] is unchoked by [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] is unchoked by [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   // 5. choking
   public void logChoking(Peer sender) {
-    String msg = String.format("Peer [%s] is choked by [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] is choked by [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   // 6. receiving 'have' message
   public void logReceiveHaveMsg(Peer sender) {
-    String msg = String.format("Peer [%s] received the 'have' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] received the 'have' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   // 7. receiving 'interested' message
   public void logReceiveInterestMsg(Peer sender) {
-    String msg = String.format("Peer [%s] received the 'interested' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] received the 'interested' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   // 8. receiving 'not interested' message
   public void logReceiveNotInterestMsg(Peer sender) {
-    String msg = String.format("Peer [%s] received the 'not interested' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] received the 'not interested' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   // 9. downloading a piece
   public void logDownload(Peer sender, int blockIdx, int numBlocks) {
-    String msg = String.format(
+    log(Level.INFO,
       "Peer [%s] has downloaded the piece [%s] from [%s]. Now the number of pieces it has is [%s]", 
       sysInfo.getHostPeer().getId(), 
       blockIdx,
       sender.getId(),
       numBlocks
     );
-    logger.info(msg);
   }
 
   // 10. completion of download
   public void logCompleteFile() {
-    String msg = String.format("Peer [%s] has downloaded the complete file.", sysInfo.getHostPeer().getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] has downloaded the complete file.", sysInfo.getHostPeer().getId());
   }
   
   public void logCloseConn(Peer targetPeer) {
-    String msg = String.format("Peer [%s] close connection with Peer [%s]", 
+    log(Level.INFO, "Peer [%s] close connection with Peer [%s]", 
       sysInfo.getHostPeer().getId(), 
       targetPeer.getId()
     );
-    logger.info(msg);
   }
 
   public void logSendHandShakeMsg(String targetPeerID, String threadType) {
-    logger.info(String.format("Peer [%s] (%s) sending handshake message to peer [%s]", sysInfo.getHostPeer().getId(), threadType, targetPeerID));
+    log(Level.INFO, "Peer [%s] (%s) sending handshake message to peer [%s]", sysInfo.getHostPeer().getId(), threadType, targetPeerID);
   }
 
   public void logReceiveHandShakeMsg(String senderId) {
-    String msg = String.format("Peer [%s] received the 'handshake' message from [%s]", sysInfo.getHostPeer().getId(), senderId);
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] received the 'handshake' message from [%s]", sysInfo.getHostPeer().getId(), senderId);
   }
 
   public void logSendBitFieldMsg(Peer recv) {
-    logger.info(String.format("Peer [%s] (server) sending bitfield message to peer [%s]", sysInfo.getHostPeer().getId(), recv.getId()));
+    log(Level.INFO, "Peer [%s] (server) sending bitfield message to peer [%s]", sysInfo.getHostPeer().getId(), recv.getId());
   }
 
   public void logReceiveBitFieldMsg(Peer sender) {
-    String msg = String.format("Peer [%s] (client) received the 'bitfield' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] (client) received the 'bitfield' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   public void logReceiveRequestMsg(Peer sender) {
-    String msg = String.format("Peer [%s] (server) received the 'request' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] (server) received the 'request' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   public void logReceivePieceMsg(Peer sender) {
-    String msg = String.format("Peer [%s] (client) received the 'piece' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] (client) received the 'piece' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   public void logSendCompleteMsg(String recvId) {
-    String msg = String.format("Peer [%s] (client) sending 'complete' message to [%s]", sysInfo.getHostPeer().getId(), recvId);
-    logger.fine(msg);
+    log(Level.FINE, "Peer [%s] (client) sending 'complete' message to [%s]", sysInfo.getHostPeer().getId(), recvId);
   }
 
   public void logReceiveCompleteMsg(Peer sender) {
-    String msg = String.format("Peer [%s] (server) received the 'complete' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] (server) received the 'complete' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   public void logReceiveBackCompleteMsg(Peer sender) {
-    String msg = String.format("Peer [%s] (client) received the return 'complete' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] (client) received the return 'complete' message from [%s]", sysInfo.getHostPeer().getId(), sender.getId());
   }
 
   public void logSystemReadyShutDown(int countDown) {
-    String msg = String.format("Peer [%s] is about to close, the countdown is %s", sysInfo.getHostPeer().getId(), countDown);
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] is about to close, the countdown is %s", sysInfo.getHostPeer().getId(), countDown);
+  }
+
+  public void logBufferPoolStats(BufferPool pool) {
+    log(Level.FINE,
+      "Peer [%s] buffer pool: hits [%s], misses [%s], free [%s/%s]",
+      sysInfo.getHostPeer().getId(),
+      pool.getHits(),
+      pool.getMisses(),
+      pool.getFreeCount(),
+      pool.capacity
+    );
+  }
+
+  public void logDiskWriterStats(long pieces, long writes, long stalls) {
+    log(Level.FINE,
+      "Peer [%s] disk writer: pieces [%s], writes [%s], full queue waits [%s]",
+      sysInfo.getHostPeer().getId(),
+      pieces,
+      writes,
+      stalls
+    );
+  }
+
+  public void logSchedulerStats(String task, long runs, long totalDriftNs, long maxDriftNs, long totalRunNs, long maxRunNs) {
+    long n = Math.max(1, runs);
+    log(Level.FINE,
+      "Peer [%s] scheduler task [%s]: runs [%s], drift avg/max [%.2f/%.2f ms], run time avg/max [%.2f/%.2f ms]",
+      sysInfo.getHostPeer().getId(),
+      task,
+      runs,
+      totalDriftNs / n / 1e6,
+      maxDriftNs / 1e6,
+      totalRunNs / n / 1e6,
+      maxRunNs / 1e6
+    );
+  }
+
+  public void logEndgameStats(long duplicateBytes, long cancelCount) {
+    log(Level.FINE,
+      "Peer [%s] endgame: duplicate bytes [%s], cancel msgs sent [%s]",
+      sysInfo.getHostPeer().getId(),
+      duplicateBytes,
+      cancelCount
+    );
   }
 
   public void logSystemIsComplete() {
-    String msg = String.format("Peer [%s] closed, system is completed", sysInfo.getHostPeer().getId());
-    logger.info(msg);
+    log(Level.INFO, "Peer [%s] closed, system is completed", sysInfo.getHostPeer().getId());
   }
 }
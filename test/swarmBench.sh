@@ -0,0 +1,9 @@
+#!/bin/bash
+# Local swarm benchmark on loopback, writes report.json in the run directory.
+# Options go to peer.SwarmHarness, e.g.
+#   sh test/swarmBench.sh --peers 8 --file-size 64M --opt ServerEngine=nio --dir /tmp/swarm8
+cd "$(dirname "$0")/.."
+if [ ! -f bench/target/benchmarks.jar ]; then
+  mvn -B -q package || exit 1
+fi
+java -cp bench/target/benchmarks.jar peer.SwarmHarness "$@"